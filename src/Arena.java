@@ -0,0 +1,532 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays games between two engine configurations without the Swing
+ * interface, to check that a change does not weaken play. Games are played
+ * in pairs from the same opening with colors reversed, on one thread per
+ * core; each game searches on a single thread so throughput grows with the
+ * number of cores.
+ *
+ * Arguments are key=value pairs, in any order:
+ *
+ *   a=depth=6,hash=16    First player: search depth, time per move in ms
+ *   b=time=100           (time), table size in MB (hash), opening book (book)
+ *   games=200            Games to play
+ *   tc=10+0.1            Clock for each side in seconds, plus increment
+ *   threads=4            Games played at once, by default one per core
+ *   openings=file.fen    Start positions; by default from the opening book
+ *   plies=8              Random or book plies played to make an opening
+ *   sprt=0:10            Elo bounds of the SPRT; the run stops once it ends
+ *   archive=games.cga    Game archive to append the games to
+ *   seed=1               Seed for choosing openings
+ *
+ * Results are reported for the first player: wins, draws and losses, the
+ * Elo difference with a 95% confidence interval, and the log likelihood
+ * ratio of the SPRT.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class Arena {
+    public static final int DEFAULT_GAMES = 100;
+    public static final int DEFAULT_PLIES = 8;
+    public static final int MAX_PLIES = 400;
+
+    // A game is adjudicated once both engines agree on a score this large
+    private static final int RESIGN_SCORE = 1000;
+    private static final int RESIGN_MOVES = 3;
+
+    // Error rates of the SPRT
+    private static final double ALPHA = 0.05;
+    private static final double BETA = 0.05;
+
+    private static final String[] ENDINGS = {
+        "playing", "checkmate", "stalemate", "fifty moves", "repetition", "tablebase",
+        "time", "resigned", "adjudication", "move limit"
+    };
+
+    /**
+     * Settings of one side.
+     */
+    static class Player {
+        final String name;
+        int depth = Search.MAX_PLY;
+        long moveTime;
+        int hash = TranspositionTable.DEFAULT_MEGABYTES;
+        boolean book;
+
+        Player(String name, String spec) {
+            this.name = name;
+            for (String setting : spec.split(",")) {
+                if (setting.isEmpty()) continue;
+                int eq = setting.indexOf('=');
+                if (eq < 0) throw new IllegalArgumentException("Expected key=value: " + setting);
+
+                String key = setting.substring(0, eq);
+                String value = setting.substring(eq + 1);
+                if (key.equals("depth")) depth = Integer.parseInt(value);
+                else if (key.equals("time")) moveTime = Long.parseLong(value);
+                else if (key.equals("hash")) hash = Integer.parseInt(value);
+                else if (key.equals("book")) book = Boolean.parseBoolean(value);
+                else throw new IllegalArgumentException("Unknown player setting: " + key);
+            }
+            if (hash < 1) throw new IllegalArgumentException("Table size must be at least 1 MB: " + hash);
+        }
+    }
+
+    /**
+     * A finished game, as the first player saw it.
+     */
+    static class Game {
+        // 1 for a win of the first player, -1 for a loss, 0 for a draw
+        final int outcome;
+        final int ending;
+        final String startFen;
+        final int[] moves;
+        final int count;
+        final int result;
+
+        Game(int outcome, int ending, String startFen, int[] moves, int count, int result) {
+            this.outcome = outcome;
+            this.ending = ending;
+            this.startFen = startFen;
+            this.moves = moves;
+            this.count = count;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Wins, draws and losses of the first player, with the statistics
+     * worked out from them.
+     */
+    static class Score {
+        int wins;
+        int draws;
+        int losses;
+
+        int games() {
+            return wins + draws + losses;
+        }
+
+        double score() {
+            return (wins + draws / 2.0) / games();
+        }
+
+        /*
+         * Variance of the result of one game.
+         */
+        double variance() {
+            double s = score();
+            return (wins * (1 - s) * (1 - s) + draws * (0.5 - s) * (0.5 - s)
+                    + losses * s * s) / games();
+        }
+
+        /**
+         * @return Elo difference giving the expected score.
+         */
+        static double elo(double score) {
+            return -400 * Math.log10(1 / score - 1);
+        }
+
+        /**
+         * @return Half the width of the 95% confidence interval of the Elo
+         * difference, or infinity while every game has the same result.
+         */
+        double eloError() {
+            double s = score();
+            double margin = 1.96 * Math.sqrt(variance() / games());
+            if (s - margin <= 0 || s + margin >= 1) return Double.POSITIVE_INFINITY;
+            return (elo(s + margin) - elo(s - margin)) / 2;
+        }
+
+        /**
+         * Log likelihood ratio of the first player being elo1 rather than
+         * elo0 points stronger, with results approximated as normal.
+         */
+        double llr(double elo0, double elo1) {
+            // With a win and a loss added to the spread, so a run of
+            // identical results has a variance above 0 that shrinks as the
+            // run grows
+            double s = score();
+            int n = games();
+            double variance = (variance() * n + (1 - s) * (1 - s) + s * s) / (n + 2);
+            double s0 = 1 / (1 + Math.pow(10, -elo0 / 400));
+            double s1 = 1 / (1 + Math.pow(10, -elo1 / 400));
+            return (s1 - s0) * (2 * s - s0 - s1) * n / (2 * variance);
+        }
+    }
+
+    private final Player a;
+    private final Player b;
+    private final int games;
+    private final long baseMillis;
+    private final long incrementMillis;
+    private final int threads;
+    private final int openingPlies;
+    private final List<Position> openings;
+    private final long seed;
+    private final double elo0;
+    private final double elo1;
+    private final boolean sprt;
+    private final GameArchive.Writer archive;
+
+    private final AtomicInteger nextPair = new AtomicInteger();
+    private final Score score = new Score();
+    private final int[] endings = new int[ENDINGS.length];
+    private volatile boolean finished;
+    private long totalPlies;
+
+    Arena(Player a, Player b, int games, long baseMillis, long incrementMillis, int threads,
+            int openingPlies, List<Position> openings, long seed, double elo0, double elo1,
+            boolean sprt, GameArchive.Writer archive) {
+        this.a = a;
+        this.b = b;
+        this.games = (games + 1) & ~1;
+        this.baseMillis = baseMillis;
+        this.incrementMillis = incrementMillis;
+        this.threads = threads;
+        this.openingPlies = openingPlies;
+        this.openings = openings;
+        this.seed = seed;
+        this.elo0 = elo0;
+        this.elo1 = elo1;
+        this.sprt = sprt;
+        this.archive = archive;
+    }
+
+    /**
+     * Plays the games and prints the results as they come in.
+     */
+    public void run() throws InterruptedException {
+        System.out.println("Playing " + games + " games of " + a.name + " against " + b.name
+                + " on " + threads + " threads");
+        long start = System.nanoTime();
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    playPairs();
+                }
+            }, "Arena " + i);
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        report();
+        StringBuilder ends = new StringBuilder("Endings:");
+        for (int i = 1; i < ENDINGS.length; i++) {
+            if (endings[i] > 0) ends.append(' ').append(ENDINGS[i]).append(' ').append(endings[i]).append(',');
+        }
+        System.out.println(ends.substring(0, ends.length() - 1));
+        System.out.printf("%d games, %d moves in %.1f s (%.2f games/s, %.0f moves/s)%n",
+                score.games(), totalPlies, seconds, score.games() / seconds, totalPlies / seconds);
+    }
+
+    /*
+     * Plays pairs of games until all are played or the SPRT ends. Both
+     * games of a pair are always played, and counted together, so the
+     * colors stay balanced.
+     */
+    private void playPairs() {
+        int[] moves = new int[MoveGenerator.MAX_MOVES];
+        TranspositionTable tableA = new TranspositionTable(a.hash);
+        TranspositionTable tableB = new TranspositionTable(b.hash);
+        Random bookRandom = new Random();
+        Game[] pairGames = new Game[2];
+
+        int pair;
+        while (!finished && (pair = nextPair.getAndIncrement()) < games / 2) {
+            Position opening = opening(pair, moves);
+            for (int aColor = Position.WHITE; aColor >= Position.BLACK; aColor--) {
+                tableA.clear();
+                tableB.clear();
+                pairGames[aColor] = play(opening, aColor, tableA, tableB, moves, bookRandom);
+            }
+            finish(pairGames);
+        }
+    }
+
+    /*
+     * Picks the start position of a pair: the next one from the openings
+     * given, otherwise book or random moves from the start.
+     */
+    private Position opening(int pair, int[] moves) {
+        if (openings != null) return new Position(openings.get(pair % openings.size()));
+
+        Random random = new Random(seed * 31 + pair);
+        OpeningBook book = OpeningBook.getDefault();
+        while (true) {
+            Position p = Position.startPosition();
+            int ply = 0;
+            for (; ply < openingPlies; ply++) {
+                int move = book == null ? Move.NONE : book.choose(p, random);
+                if (move == Move.NONE) {
+                    int n = MoveGenerator.generate(p, moves, 0);
+                    if (n == 0) break;
+                    move = moves[random.nextInt(n)];
+                }
+                p.makeMove(move);
+            }
+            if (ply == openingPlies
+                    && TurnState.status(p, MoveGenerator.generate(p, moves, 0)) == TurnState.PLAYING) {
+                return p;
+            }
+        }
+    }
+
+    private Game play(Position opening, int aColor, TranspositionTable tableA,
+            TranspositionTable tableB, int[] moves, Random bookRandom) {
+        Position p = new Position(opening);
+        String startFen = p.toFen();
+        Player[] players = new Player[2];
+        Search[] searches = new Search[2];
+        Clock[] clocks = new Clock[2];
+        players[aColor] = a;
+        players[aColor ^ 1] = b;
+        searches[aColor] = new Search(p, tableA);
+        searches[aColor ^ 1] = new Search(p, tableB);
+        for (int c = 0; c < 2; c++) {
+            clocks[c] = new Clock(baseMillis, incrementMillis, 0);
+        }
+
+        int[] history = new int[MAX_PLIES];
+        int count = 0;
+        int ending;
+        int winner = -1;
+        // Plies in a row in which the side to move saw itself winning or losing
+        int winning = 0;
+        int losing = 0;
+
+        while (true) {
+            int color = p.getSideToMove();
+            int status = TurnState.status(p, MoveGenerator.generate(p, moves, 0));
+            if (status != TurnState.PLAYING) {
+                ending = status;
+                if (status == TurnState.CHECKMATE) winner = color ^ 1;
+                break;
+            }
+
+            int tablebase = CheckmateDetector.adjudicate(p);
+            if (tablebase != Tablebase.NOT_FOUND) {
+                ending = TurnState.TABLEBASE;
+                if (tablebase != 0) winner = tablebase > 0 ? color : color ^ 1;
+                break;
+            }
+            if (count == MAX_PLIES) {
+                ending = TurnState.MOVE_LIMIT;
+                break;
+            }
+
+            Player player = players[color];
+            long now = System.nanoTime();
+            clocks[color].start(now);
+
+            int move = Move.NONE;
+            if (player.book) {
+                OpeningBook book = OpeningBook.getDefault();
+                if (book != null) move = book.choose(p, bookRandom);
+            }
+            int eval = 0;
+            if (move == Move.NONE) {
+                long millis = player.moveTime > 0 ? player.moveTime
+                        : UciMain.allocate(clocks[color].getRemaining(now), incrementMillis, 0);
+                searches[color].reset();
+                move = searches[color].search(player.depth, millis);
+                eval = searches[color].getBestScore();
+            }
+
+            if (baseMillis > 0 && !clocks[color].moveMade(System.nanoTime())) {
+                ending = TurnState.TIME;
+                winner = color ^ 1;
+                break;
+            }
+
+            // Scores alternate sides, so a side agreeing it is lost shows
+            // up as winning and losing counts in step
+            if (eval >= RESIGN_SCORE) {
+                winning++;
+            } else if (eval <= -RESIGN_SCORE) {
+                losing++;
+            } else {
+                winning = 0;
+                losing = 0;
+            }
+            if (winning >= RESIGN_MOVES && losing >= RESIGN_MOVES) {
+                ending = TurnState.ADJUDICATION;
+                winner = eval > 0 ? color : color ^ 1;
+                break;
+            }
+
+            p.makeMove(move);
+            history[count++] = move;
+        }
+
+        int result = winner < 0 ? GameArchive.DRAW
+                : winner == Position.WHITE ? GameArchive.WHITE_WINS : GameArchive.BLACK_WINS;
+        return new Game(winner < 0 ? 0 : winner == aColor ? 1 : -1, ending, startFen, history, count,
+                result);
+    }
+
+    /*
+     * Counts a finished pair, unless the SPRT has already ended: the score
+     * it ended on is the one reported.
+     */
+    private synchronized void finish(Game[] pair) {
+        if (finished) return;
+
+        for (Game game : pair) {
+            if (game.outcome > 0) score.wins++;
+            else if (game.outcome < 0) score.losses++;
+            else score.draws++;
+            endings[game.ending]++;
+            totalPlies += game.count;
+
+            if (archive != null) {
+                try {
+                    archive.append(game.startFen, game.moves, game.count, game.result);
+                } catch (IOException e) {
+                    System.err.println("Cannot write game archive: " + e.getMessage());
+                }
+            }
+        }
+
+        // Pairs come in twos, so report on an even number of games
+        int every = Math.max(2, Math.min(20, games / 10) & ~1);
+        if (score.games() % every == 0 && score.games() < games) report();
+
+        if (sprt) {
+            double llr = score.llr(elo0, elo1);
+            if (llr >= Math.log((1 - BETA) / ALPHA) || llr <= Math.log(BETA / (1 - ALPHA))) {
+                finished = true;
+            }
+        }
+    }
+
+    private synchronized void report() {
+        if (score.games() == 0) return;
+
+        double s = score.score();
+        double error = score.eloError();
+        StringBuilder line = new StringBuilder();
+        line.append("Games ").append(score.games()).append(": +").append(score.wins)
+                .append(" =").append(score.draws).append(" -").append(score.losses)
+                .append(String.format(", score %.1f%%, Elo ", 100 * s));
+        if (s == 0 || s == 1) line.append(s == 0 ? "-inf" : "+inf");
+        else line.append(String.format("%+.1f", Score.elo(s) + 0.0));
+        line.append(Double.isInfinite(error) ? " +- inf" : String.format(" +- %.1f", error));
+
+        if (sprt) {
+            double lower = Math.log(BETA / (1 - ALPHA));
+            double upper = Math.log((1 - BETA) / ALPHA);
+            double llr = score.llr(elo0, elo1);
+            line.append(String.format(", LLR %.2f (%.2f, %.2f) [%s, %s]", llr, lower, upper,
+                    format(elo0), format(elo1)));
+            if (llr >= upper) line.append(" H1 accepted");
+            else if (llr <= lower) line.append(" H0 accepted");
+        }
+        System.out.println(line);
+    }
+
+    private static String format(double elo) {
+        return elo == Math.rint(elo) ? Long.toString((long) elo) : Double.toString(elo);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Player a = new Player("A", "depth=4");
+        Player b = new Player("B", "depth=4");
+        int games = DEFAULT_GAMES;
+        long base = 0;
+        long increment = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int plies = DEFAULT_PLIES;
+        String openingFile = null;
+        long seed = System.nanoTime();
+        double elo0 = 0;
+        double elo1 = 0;
+        boolean sprt = false;
+        String archiveFile = null;
+
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.err.println("Usage: java Arena [a=depth=6,hash=16] [b=time=100] [games=N]"
+                        + " [tc=seconds+increment] [threads=N] [openings=file.fen] [plies=N]"
+                        + " [sprt=elo0:elo1] [archive=file] [seed=N]");
+                System.exit(2);
+            }
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+
+            if (key.equals("a")) {
+                a = new Player("A", value);
+            } else if (key.equals("b")) {
+                b = new Player("B", value);
+            } else if (key.equals("games")) {
+                games = Integer.parseInt(value);
+            } else if (key.equals("tc")) {
+                int plus = value.indexOf('+');
+                base = (long) (Double.parseDouble(plus < 0 ? value : value.substring(0, plus)) * 1000);
+                if (plus >= 0) increment = (long) (Double.parseDouble(value.substring(plus + 1)) * 1000);
+            } else if (key.equals("threads")) {
+                threads = Math.max(1, Integer.parseInt(value));
+            } else if (key.equals("openings")) {
+                openingFile = value;
+            } else if (key.equals("plies")) {
+                plies = Integer.parseInt(value);
+            } else if (key.equals("sprt")) {
+                int colon = value.indexOf(':');
+                elo0 = Double.parseDouble(value.substring(0, colon));
+                elo1 = Double.parseDouble(value.substring(colon + 1));
+                sprt = true;
+            } else if (key.equals("archive")) {
+                archiveFile = value;
+            } else if (key.equals("seed")) {
+                seed = Long.parseLong(value);
+            } else {
+                System.err.println("Unknown argument: " + key);
+                System.exit(2);
+            }
+        }
+
+        for (Player p : new Player[] {a, b}) {
+            if (base == 0 && p.moveTime == 0 && p.depth == Search.MAX_PLY) {
+                System.err.println("Player " + p.name + " needs a depth, a time per move or a clock");
+                System.exit(2);
+            }
+        }
+
+        List<Position> openings = null;
+        if (openingFile != null) {
+            final List<Position> read = new ArrayList<Position>();
+            FenFile.read(Paths.get(openingFile), new FenFile.Visitor() {
+                public void visit(Position p, long line) {
+                    read.add(new Position(p));
+                }
+            });
+            if (read.isEmpty()) {
+                System.err.println("No positions in " + openingFile);
+                System.exit(1);
+            }
+            openings = read;
+        }
+
+        GameArchive.Writer archive = archiveFile == null ? null
+                : new GameArchive.Writer(Paths.get(archiveFile));
+        try {
+            new Arena(a, b, games, base, increment, threads, plies, openings, seed,
+                    elo0, elo1, sprt, archive).run();
+        } finally {
+            if (archive != null) archive.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only CharSequence view of a range of ASCII bytes in a ByteBuffer, so
+ * text in a file buffer can be parsed without decoding it into Strings. The
+ * view can be moved over the buffer and reused for every line.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class AsciiSequence implements CharSequence {
+    private final ByteBuffer buffer;
+    private int start;
+    private int end;
+
+    /**
+     * @param buffer The bytes to view. Read with absolute gets, so its
+     * position and limit are not used.
+     */
+    public AsciiSequence(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Moves the view to another range of the buffer.
+     *
+     * @param start Index of the first byte
+     * @param end Index one past the last byte
+     * @return This view
+     */
+    public AsciiSequence setRange(int start, int end) {
+        this.start = start;
+        this.end = end;
+        return this;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public char charAt(int index) {
+        return (char) (buffer.get(start + index) & 0xFF);
+    }
+
+    public CharSequence subSequence(int from, int to) {
+        return new AsciiSequence(buffer).setRange(start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
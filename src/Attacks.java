@@ -0,0 +1,241 @@
+
+/**
+ * Precomputed attack tables for all piece types. Sliding piece attacks are
+ * looked up with magic bitboards: the relevant blockers of a square are
+ * multiplied by a magic number and the top bits of the product index a
+ * table holding the attack set for that occupancy.
+ *
+ * All squares are Position square indices, 0 being a1.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class Attacks {
+    private static final long[] ROOK_MAGICS = {
+        0x0200120081002042L, 0x0440100020004000L, 0x0880200108100081L,
+        0x0100090410010120L, 0x0100100500020800L, 0x1A00041088020001L,
+        0x828002000C800300L, 0x4200008400402201L, 0x0020802080004000L,
+        0x0410400020005008L, 0x8006801000200080L, 0x1001801000803800L,
+        0x0001800400E80080L, 0x0480800200040080L, 0xC008802100801200L,
+        0x0901000393000242L, 0xE480248000844000L, 0x0410014020024010L,
+        0x1110110020004104L, 0x0140848008001000L, 0x0011010004080010L,
+        0x0010818012000400L, 0x0000140032100821L, 0x40801A0001004484L,
+        0x0000209080004006L, 0xC900500840002004L, 0x0800200080801000L,
+        0x0041002100081000L, 0x4001000500100802L, 0x0804010040400200L,
+        0x20412A2400105548L, 0x0008084200148401L, 0x0010400020800088L,
+        0x4000201000400040L, 0xC405200084805000L, 0x8000081001002100L,
+        0x2280800800800400L, 0x0420800400800200L, 0x0100013044008208L,
+        0x0000240186000841L, 0x1400800040008022L, 0x3050102000404000L,
+        0x0020080010004040L, 0x0004204200120008L, 0x196A000820120004L,
+        0x0202000410020009L, 0x0080080290040001L, 0x402020438D020004L,
+        0x0980002000400040L, 0x0100400020100840L, 0x4015002004401100L,
+        0x054040200A021200L, 0x4016800800040080L, 0x0040040080020080L,
+        0x1085000402000100L, 0x0021008C01084200L, 0x01A0402080010213L,
+        0x44098300A4920042L, 0x0000102200400882L, 0x0004041001002109L,
+        0x08020020C4500802L, 0x0001004400020841L, 0x01001810250A2084L,
+        0x2524208401002042L
+    };
+
+    private static final long[] BISHOP_MAGICS = {
+        0x0009200404002020L, 0x08841000B2028040L, 0x1442440300A08002L,
+        0x0014051208408800L, 0x0002021021140010L, 0x4C00826060880004L,
+        0x0011009220A10020L, 0x1012808090102201L, 0x0000202001010120L,
+        0x0010040404440420L, 0x0102080081060410L, 0x010002408100A802L,
+        0x0000020210000200L, 0x0040824110C00088L, 0x0001808230422100L,
+        0x09041021081E1103L, 0x800401C008824420L, 0x0002408822480200L,
+        0x0009000884030200L, 0x004080080A06C002L, 0x00C2003012101000L,
+        0x0011020080414000L, 0x0202000042022000L, 0x3202040101010104L,
+        0x1091304008A00900L, 0x1002100002140868L, 0x8048021044040012L,
+        0x0494040000401080L, 0x4001010000104000L, 0x0002088008080902L,
+        0x0002022000880100L, 0x0020430000940111L, 0x0001042050102008L,
+        0x0000880400489001L, 0x0002008221100024L, 0x0028A02020080080L,
+        0x00CA008400020120L, 0x0130004080451018L, 0x8008008400388246L,
+        0x0004842100098480L, 0x2008112410002008L, 0x0400A09008021020L,
+        0x2000140028041400L, 0x4880004010410200L, 0x2440040408200400L,
+        0x8011600881804100L, 0x080890011E040048L, 0x2001044086000088L,
+        0x02420804C4240010L, 0x4202020E02030D00L, 0x0000003C02080428L,
+        0x2048004084040008L, 0x80401204050C0000L, 0x0023042144210502L,
+        0x012012044811A001L, 0x10041490A4010000L, 0x0083040201044200L,
+        0x0004010402121300L, 0x9800003022081220L, 0x0020010408420202L,
+        0x010881004004884AL, 0x1403084030020090L, 0x0A18200404081040L,
+        0x0041044404082020L
+    };
+
+    private static final int[][] ROOK_DIRECTIONS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+    private static final int[][] BISHOP_DIRECTIONS = {{1, 1}, {1, -1}, {-1, 1}, {-1, -1}};
+
+    private static final long[] ROOK_MASKS = new long[64];
+    private static final long[] BISHOP_MASKS = new long[64];
+    private static final int[] ROOK_SHIFTS = new int[64];
+    private static final int[] BISHOP_SHIFTS = new int[64];
+    private static final long[][] ROOK_TABLE = new long[64][];
+    private static final long[][] BISHOP_TABLE = new long[64][];
+
+    private static final long[] KNIGHT_ATTACKS = new long[64];
+    private static final long[] KING_ATTACKS = new long[64];
+    private static final long[][] PAWN_ATTACKS = new long[2][64];
+
+    private static final long[][] BETWEEN = new long[64][64];
+    private static final long[][] LINE = new long[64][64];
+
+    static {
+        for (int sq = 0; sq < 64; sq++) {
+            initSlider(sq, ROOK_DIRECTIONS, ROOK_MAGICS, ROOK_MASKS, ROOK_SHIFTS, ROOK_TABLE);
+            initSlider(sq, BISHOP_DIRECTIONS, BISHOP_MAGICS, BISHOP_MASKS, BISHOP_SHIFTS, BISHOP_TABLE);
+
+            KNIGHT_ATTACKS[sq] = leaperAttacks(sq, new int[][] {{1, 2}, {2, 1}, {2, -1}, {1, -2},
+                    {-1, -2}, {-2, -1}, {-2, 1}, {-1, 2}});
+            KING_ATTACKS[sq] = leaperAttacks(sq, new int[][] {{1, 1}, {1, 0}, {1, -1}, {0, 1},
+                    {0, -1}, {-1, 1}, {-1, 0}, {-1, -1}});
+            PAWN_ATTACKS[Position.WHITE][sq] = leaperAttacks(sq, new int[][] {{1, -1}, {1, 1}});
+            PAWN_ATTACKS[Position.BLACK][sq] = leaperAttacks(sq, new int[][] {{-1, -1}, {-1, 1}});
+        }
+
+        for (int a = 0; a < 64; a++) {
+            for (int b = 0; b < 64; b++) {
+                initLine(a, b);
+            }
+        }
+    }
+
+    private Attacks() {
+    }
+
+    /**
+     * @param sq Square of the rook
+     * @param occupied Bitboard of all occupied squares
+     * @return Squares attacked by a rook, including the first blocker on
+     * each ray regardless of its color.
+     */
+    public static long rookAttacks(int sq, long occupied) {
+        return ROOK_TABLE[sq][(int) (((occupied & ROOK_MASKS[sq]) * ROOK_MAGICS[sq]) >>> ROOK_SHIFTS[sq])];
+    }
+
+    /**
+     * @param sq Square of the bishop
+     * @param occupied Bitboard of all occupied squares
+     * @return Squares attacked by a bishop, including the first blocker on
+     * each ray regardless of its color.
+     */
+    public static long bishopAttacks(int sq, long occupied) {
+        return BISHOP_TABLE[sq][(int) (((occupied & BISHOP_MASKS[sq]) * BISHOP_MAGICS[sq]) >>> BISHOP_SHIFTS[sq])];
+    }
+
+    public static long queenAttacks(int sq, long occupied) {
+        return rookAttacks(sq, occupied) | bishopAttacks(sq, occupied);
+    }
+
+    public static long knightAttacks(int sq) {
+        return KNIGHT_ATTACKS[sq];
+    }
+
+    public static long kingAttacks(int sq) {
+        return KING_ATTACKS[sq];
+    }
+
+    /**
+     * @param color Color of the pawn
+     * @param sq Square of the pawn
+     * @return Squares the pawn attacks diagonally
+     */
+    public static long pawnAttacks(int color, int sq) {
+        return PAWN_ATTACKS[color][sq];
+    }
+
+    /**
+     * @return Squares strictly between two squares on a shared rank, file or
+     * diagonal, or 0 if they are not aligned.
+     */
+    public static long between(int a, int b) {
+        return BETWEEN[a][b];
+    }
+
+    /**
+     * @return The whole rank, file or diagonal through two squares,
+     * including both of them, or 0 if they are not aligned.
+     */
+    public static long line(int a, int b) {
+        return LINE[a][b];
+    }
+
+    private static void initLine(int a, int b) {
+        if (a == b) return;
+
+        long bitA = 1L << a;
+        long bitB = 1L << b;
+
+        if ((slowAttacks(a, 0, ROOK_DIRECTIONS) & bitB) != 0) {
+            BETWEEN[a][b] = slowAttacks(a, bitB, ROOK_DIRECTIONS)
+                    & slowAttacks(b, bitA, ROOK_DIRECTIONS);
+            LINE[a][b] = (slowAttacks(a, 0, ROOK_DIRECTIONS)
+                    & slowAttacks(b, 0, ROOK_DIRECTIONS)) | bitA | bitB;
+        } else if ((slowAttacks(a, 0, BISHOP_DIRECTIONS) & bitB) != 0) {
+            BETWEEN[a][b] = slowAttacks(a, bitB, BISHOP_DIRECTIONS)
+                    & slowAttacks(b, bitA, BISHOP_DIRECTIONS);
+            LINE[a][b] = (slowAttacks(a, 0, BISHOP_DIRECTIONS)
+                    & slowAttacks(b, 0, BISHOP_DIRECTIONS)) | bitA | bitB;
+        }
+    }
+
+    /*
+     * Builds the blocker mask and attack table of one square. Every subset of
+     * the mask is enumerated with the carry-rippler trick and stored at its
+     * magic index.
+     */
+    private static void initSlider(int sq, int[][] dirs, long[] magics,
+            long[] masks, int[] shifts, long[][] table) {
+        long mask = 0;
+        for (int[] d : dirs) {
+            int r = (sq >>> 3) + d[0];
+            int f = (sq & 7) + d[1];
+            // Edge squares never block anything behind them
+            while (onBoard(r + d[0], f + d[1])) {
+                mask |= 1L << (r * 8 + f);
+                r += d[0];
+                f += d[1];
+            }
+        }
+
+        int bits = Long.bitCount(mask);
+        masks[sq] = mask;
+        shifts[sq] = 64 - bits;
+        table[sq] = new long[1 << bits];
+
+        long subset = 0;
+        do {
+            int index = (int) ((subset * magics[sq]) >>> shifts[sq]);
+            table[sq][index] = slowAttacks(sq, subset, dirs);
+            subset = (subset - mask) & mask;
+        } while (subset != 0);
+    }
+
+    private static long slowAttacks(int sq, long occupied, int[][] dirs) {
+        long attacks = 0;
+        for (int[] d : dirs) {
+            int r = (sq >>> 3) + d[0];
+            int f = (sq & 7) + d[1];
+            while (onBoard(r, f)) {
+                long bit = 1L << (r * 8 + f);
+                attacks |= bit;
+                if ((occupied & bit) != 0) break;
+                r += d[0];
+                f += d[1];
+            }
+        }
+        return attacks;
+    }
+
+    private static long leaperAttacks(int sq, int[][] offsets) {
+        long attacks = 0;
+        for (int[] o : offsets) {
+            int r = (sq >>> 3) + o[0];
+            int f = (sq & 7) + o[1];
+            if (onBoard(r, f)) attacks |= 1L << (r * 8 + f);
+        }
+        return attacks;
+    }
+
+    private static boolean onBoard(int r, int f) {
+        return r >= 0 && r < 8 && f >= 0 && f < 8;
+    }
+}
@@ -0,0 +1,244 @@
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro-benchmarks for the rules engine code paths that run on every move:
+ * Piece.getLegalMoves and Piece.generateMoves for each piece type, the
+ * CheckmateDetector queries, the legal move generator and FEN reading and
+ * writing, on a fixed set of middlegame and endgame positions.
+ *
+ * Each benchmark is warmed up before being timed over several iterations.
+ * Results are reported as operations per second and bytes allocated per
+ * operation, read from the thread allocation counter of the JVM.
+ *
+ * Usage: java -Djava.awt.headless=true Benchmark [name filter] [seconds]
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class Benchmark {
+    private static final String[][] POSITIONS = {
+        {"opening", "r1bqkbnr/pppp1ppp/2n5/4p3/4P3/5N2/PPPP1PPP/RNBQKB1R w KQkq - 2 3"},
+        {"middlegame", "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10"},
+        {"tactical", "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1"},
+        {"in check", "rnbqkbnr/ppp2ppp/3p4/1B2p3/4P3/8/PPPP1PPP/RNBQK1NR b KQkq - 1 3"},
+        {"checkmate", "r1bqkb1r/pppp1Qpp/2n2n2/4p3/2B1P3/8/PPPP1PPP/RNB1K1NR b KQkq - 0 4"},
+        {"rook endgame", "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1"},
+        {"queen endgame", "8/5k2/3q4/8/8/2Q5/5K2/8 w - - 0 1"}
+    };
+
+    private static final String[] PIECE_NAMES =
+        {"Pawn", "Knight", "Bishop", "Rook", "Queen", "King"};
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+
+    /*
+     * A benchmarked operation. The returned value is accumulated so the JIT
+     * cannot discard the work.
+     */
+    private interface Operation {
+        int run();
+    }
+
+    private static long sink;
+
+    private final long iterationNanos;
+    private final ThreadMXBean threads;
+
+    public Benchmark(double secondsPerIteration) {
+        this.iterationNanos = (long) (secondsPerIteration * 1e9);
+        this.threads = ManagementFactory.getThreadMXBean();
+    }
+
+    /**
+     * Warms up and measures one operation, then prints its throughput and
+     * allocation per operation.
+     *
+     * @param name Name of the benchmark
+     * @param op The operation to measure
+     */
+    public void measure(String name, Operation op) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iterate(op);
+        }
+
+        long ops = 0;
+        long nanos = 0;
+        long bytes = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            long allocStart = allocatedBytes();
+            long start = System.nanoTime();
+            ops += iterate(op);
+            nanos += System.nanoTime() - start;
+            bytes += allocatedBytes() - allocStart;
+        }
+
+        double opsPerSec = ops * 1e9 / nanos;
+        String alloc = bytes < 0 ? "n/a" : String.format("%.1f", (double) bytes / ops);
+        System.out.println(String.format("%-48s %14.0f ops/s %10s B/op", name, opsPerSec, alloc));
+    }
+
+    /*
+     * Runs the operation in batches until one iteration's time is used up.
+     */
+    private long iterate(Operation op) {
+        long ops = 0;
+        long acc = 0;
+        long end = System.nanoTime() + iterationNanos;
+
+        do {
+            for (int i = 0; i < 1024; i++) {
+                acc += op.run();
+            }
+            ops += 1024;
+        } while (System.nanoTime() < end);
+
+        sink += acc;
+        return ops;
+    }
+
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Runs every benchmark whose name contains the filter on every position.
+     *
+     * @param filter Substring a benchmark name must contain
+     */
+    public void runAll(String filter) {
+        for (String[] entry : POSITIONS) {
+            final String label = entry[0];
+            final Board b = new Board(null, Position.fromFen(entry[1]));
+            final Position pos = b.getPosition();
+            final CheckmateDetector cmd = b.getCheckmateDetector();
+            final boolean white = pos.isWhiteToMove();
+            final int color = pos.getSideToMove();
+
+            List<String> names = new ArrayList<String>();
+            List<Operation> ops = new ArrayList<Operation>();
+
+            for (int type = Position.PAWN; type <= Position.KING; type++) {
+                final Piece[] pieces = piecesOf(b, color, type);
+                if (pieces.length == 0) continue;
+
+                names.add(PIECE_NAMES[type] + ".getLegalMoves");
+                ops.add(new Operation() {
+                    private int i;
+
+                    public int run() {
+                        Piece p = pieces[i++ % pieces.length];
+                        return p.getLegalMoves(b).size();
+                    }
+                });
+
+                names.add(PIECE_NAMES[type] + ".generateMoves");
+                ops.add(new Operation() {
+                    private final int[] buffer = new int[MoveGenerator.MAX_MOVES];
+                    private int i;
+
+                    public int run() {
+                        Piece p = pieces[i++ % pieces.length];
+                        return p.generateMoves(pos, buffer, 0);
+                    }
+                });
+            }
+
+            names.add("CheckmateDetector.inCheck");
+            ops.add(new Operation() {
+                public int run() {
+                    return white ? (cmd.whiteInCheck() ? 1 : 0) : (cmd.blackInCheck() ? 1 : 0);
+                }
+            });
+
+            // A legal move of the side to move, to test
+            final int[] legal = new int[MoveGenerator.MAX_MOVES];
+            if (MoveGenerator.generate(pos, legal, 0) > 0) {
+                final int move = legal[0];
+                final Piece mover = b.getSquare(Move.from(move)).getOccupyingPiece();
+                final Square target = b.getSquare(Move.to(move));
+
+                names.add("CheckmateDetector.testMove");
+                ops.add(new Operation() {
+                    public int run() {
+                        return cmd.testMove(mover, target) ? 1 : 0;
+                    }
+                });
+            }
+
+            names.add("CheckmateDetector.getAllowableSquares");
+            ops.add(new Operation() {
+                public int run() {
+                    return cmd.getAllowableSquares(white).size();
+                }
+            });
+
+            names.add("CheckmateDetector.checkMated");
+            ops.add(new Operation() {
+                public int run() {
+                    return white ? (cmd.whiteCheckMated() ? 1 : 0)
+                            : (cmd.blackCheckMated() ? 1 : 0);
+                }
+            });
+
+            final String fen = entry[1];
+            final Position scratch = new Position();
+            names.add("Position.setFen");
+            ops.add(new Operation() {
+                public int run() {
+                    scratch.setFen(fen, 0, fen.length());
+                    return scratch.getSideToMove();
+                }
+            });
+
+            final StringBuilder sb = new StringBuilder();
+            names.add("Position.appendFen");
+            ops.add(new Operation() {
+                public int run() {
+                    sb.setLength(0);
+                    return pos.appendFen(sb).length();
+                }
+            });
+
+            names.add("MoveGenerator.generate");
+            ops.add(new Operation() {
+                public int run() {
+                    return MoveGenerator.generate(pos, legal, 0);
+                }
+            });
+
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i) + " [" + label + "]";
+                if (name.contains(filter)) measure(name, ops.get(i));
+            }
+        }
+    }
+
+    private static Piece[] piecesOf(Board b, int color, int type) {
+        long bits = b.getPosition().pieces(color, type);
+        Piece[] pieces = new Piece[Long.bitCount(bits)];
+
+        for (int i = 0; bits != 0; i++) {
+            pieces[i] = b.getSquare(Long.numberOfTrailingZeros(bits)).getOccupyingPiece();
+            bits &= bits - 1;
+        }
+
+        return pieces;
+    }
+
+    public static void main(String[] args) {
+        String filter = args.length > 0 ? args[0] : "";
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+
+        new Benchmark(seconds).runAll(filter);
+        if (sink == 42) System.out.println();
+    }
+}
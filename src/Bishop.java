@@ -1,19 +1,18 @@
-
-
-import java.util.List;
-
 public class Bishop extends Piece {
 
     public Bishop(int color, Square initSq, String img_file) {
         super(color, initSq, img_file);
     }
+
+    @Override
+    public int getType() {
+        return Position.BISHOP;
+    }
     
     @Override
-    public List<Square> getLegalMoves(Board b) {
-        Square[][] board = b.getSquareArray();
-        int x = this.getPosition().getXNum();
-        int y = this.getPosition().getYNum();
+    public long getTargets(Position p) {
+        int sq = this.getPosition().getIndex();
         
-        return getDiagonalOccupations(board, x, y);
+        return Attacks.bishopAttacks(sq, p.occupied()) & ~p.occupancy(this.getColor());
     }
 }
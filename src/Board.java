@@ -1,57 +1,134 @@
 
 
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.awt.GridLayout;
-import java.awt.Image;
-import java.awt.Point;
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.*;
 
 @SuppressWarnings("serial")
 public class Board extends JPanel implements MouseListener, MouseMotionListener {
-	// Resource location constants for piece images
-    private static final String RESOURCES_WBISHOP_PNG = "wbishop.png";
-	private static final String RESOURCES_BBISHOP_PNG = "bbishop.png";
-	private static final String RESOURCES_WKNIGHT_PNG = "wknight.png";
-	private static final String RESOURCES_BKNIGHT_PNG = "bknight.png";
-	private static final String RESOURCES_WROOK_PNG = "wrook.png";
-	private static final String RESOURCES_BROOK_PNG = "brook.png";
-	private static final String RESOURCES_WKING_PNG = "wking.png";
-	private static final String RESOURCES_BKING_PNG = "bking.png";
-	private static final String RESOURCES_BQUEEN_PNG = "bqueen.png";
-	private static final String RESOURCES_WQUEEN_PNG = "wqueen.png";
-	private static final String RESOURCES_WPAWN_PNG = "wpawn.png";
-	private static final String RESOURCES_BPAWN_PNG = "bpawn.png";
-	
+    public static final int SQUARE_SIZE = 50;
+    public static final int BOARD_SIZE = 8 * SQUARE_SIZE;
+    
+    // Square colors indexed by Square.getColor()
+    private static final Color[] SQUARE_COLORS = {
+        new Color(101, 67, 33), new Color(221, 192, 127)
+    };
+    
+    // Overlay on the squares the dragged piece can move to
+    private static final Color TARGET_COLOR = new Color(40, 130, 220, 110);
+    
+    private static final String[] PROMOTION_CHOICES = {"Queen", "Rook", "Bishop", "Knight"};
+    private static final int[] PROMOTION_TYPES =
+        {Position.QUEEN, Position.ROOK, Position.BISHOP, Position.KNIGHT};
+    
+    // Rules work for every board runs here, off the event dispatch thread
+    private static final ExecutorService RULES = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Rules");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    
+    // Writes finished games to the archive off the event dispatch thread
+    private static final ExecutorService ARCHIVE = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Archive");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    // Opened on the archive thread for the first game and kept open
+    private static GameArchive.Writer archiveWriter;
+    
 	// Logical and graphical representations of board
+	private final Position position;
 	private final Square[][] board;
     private final GameWindow g;
     
-    // List of pieces and whether they are movable
+    // List of pieces
     public final LinkedList<Piece> Bpieces;
     public final LinkedList<Piece> Wpieces;
-    public List<Square> movable;
     
-    private boolean whiteTurn;
-
+    // Legal moves and status of the current turn, computed in the background
+    // when the turn begins. Null until they arrive; moves are not accepted
+    // before then
+    private TurnState turn;
+    private int ply;
+    
     private Piece currPiece;
     private int currX;
     private int currY;
     
+    // Latest drag position, drawn when the frame timer fires
+    private int dragX;
+    private int dragY;
+    private final Timer frameTimer;
+    
     private CheckmateDetector cmd;
     
+    // The empty board, drawn once and reused by every paint
+    private BufferedImage background;
+    
+    // The board with its pieces, redrawn only when the position or the
+    // piece being dragged changes
+    private BufferedImage boardImage;
+    private long boardHash;
+    private int boardHidden;
+    
+    // Computer players indexed by color, null for a human player
+    private final EnginePlayer[] engines;
+    private boolean stopped;
+    
+    // Moves played since the starting position, for saving the game
+    private final String startFen;
+    private int[] history;
+    private int historySize;
+    private int result;
+    
     public Board(GameWindow g) {
+        this(g, Position.startPosition());
+    }
+    
+    public Board(GameWindow g, Position position) {
         this.g = g;
+        this.position = position;
         board = new Square[8][8];
         Bpieces = new LinkedList<Piece>();
         Wpieces = new LinkedList<Piece>();
-        setLayout(new GridLayout(8, 8, 0, 0));
+        engines = new EnginePlayer[2];
+        startFen = position.toFen();
+        history = new int[128];
+        result = GameArchive.UNKNOWN;
+
+        // Drag events are coalesced so the sprite moves at most once a frame
+        frameTimer = new Timer(frameMillis(), new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                moveDraggedPiece(dragX, dragY);
+            }
+        });
+        frameTimer.setRepeats(false);
 
         this.addMouseListener(this);
         this.addMouseMotionListener(this);
@@ -63,72 +140,320 @@ public class Board extends JPanel implements MouseListener, MouseMotionListener
 
                 if ((xMod == 0 && yMod == 0) || (xMod == 1 && yMod == 1)) {
                     board[x][y] = new Square(this, 1, y, x);
-                    this.add(board[x][y]);
                 } else {
                     board[x][y] = new Square(this, 0, y, x);
-                    this.add(board[x][y]);
                 }
             }
         }
 
         initializePieces();
+        beginTurn();
 
-        this.setPreferredSize(new Dimension(400, 400));
-        this.setMaximumSize(new Dimension(400, 400));
+        this.setPreferredSize(new Dimension(BOARD_SIZE, BOARD_SIZE));
+        this.setMaximumSize(new Dimension(BOARD_SIZE, BOARD_SIZE));
         this.setMinimumSize(this.getPreferredSize());
-        this.setSize(new Dimension(400, 400));
+        this.setSize(new Dimension(BOARD_SIZE, BOARD_SIZE));
+    }
 
-        whiteTurn = true;
+    private void initializePieces() {
+        
+        // Create a piece object for every piece in the position model
+        for (int sq = 0; sq < 64; sq++) {
+            int code = position.pieceAt(sq);
+            if (code == Position.EMPTY) continue;
+            
+            Square s = board[Position.getY(sq)][Position.getX(sq)];
+            Piece p = createPiece(code, s);
+            s.put(p);
+            
+            if (p.getColor() == 0) Bpieces.add(p);
+            else Wpieces.add(p);
+        }
+        
+        cmd = new CheckmateDetector(this);
+    }
+    
+    private static Piece createPiece(int code, Square sq) {
+        int color = Position.colorOf(code);
+        String img = Sprites.PIECE_FILES[color][Position.typeOf(code)];
+        
+        switch (Position.typeOf(code)) {
+            case Position.PAWN: return new Pawn(color, sq, img);
+            case Position.KNIGHT: return new Knight(color, sq, img);
+            case Position.BISHOP: return new Bishop(color, sq, img);
+            case Position.ROOK: return new Rook(color, sq, img);
+            case Position.QUEEN: return new Queen(color, sq, img);
+            default: return new King(color, sq, img);
+        }
+    }
 
+    public Square[][] getSquareArray() {
+        return this.board;
     }
 
-    private void initializePieces() {
-    	
-        for (int x = 0; x < 8; x++) {
-            board[1][x].put(new Pawn(0, board[1][x], RESOURCES_BPAWN_PNG));
-            board[6][x].put(new Pawn(1, board[6][x], RESOURCES_WPAWN_PNG));
+    public Square getSquare(int sq) {
+        return board[Position.getY(sq)][Position.getX(sq)];
+    }
+
+    /**
+     * @param x Horizontal pixel coordinate on the board
+     * @param y Vertical pixel coordinate on the board
+     * @return The square under the point, or null if it is off the board.
+     */
+    public Square getSquareAt(int x, int y) {
+        if (x < 0 || y < 0 || x >= BOARD_SIZE || y >= BOARD_SIZE) return null;
+        return board[y / SQUARE_SIZE][x / SQUARE_SIZE];
+    }
+
+    public Position getPosition() {
+        return this.position;
+    }
+
+    public CheckmateDetector getCheckmateDetector() {
+        return this.cmd;
+    }
+
+    /**
+     * Hands one side of the game to a computer player, or back to a human
+     * with null. If that side is to move, the engine starts thinking, or
+     * does so once the turn's state is ready.
+     * 
+     * @param color Color of the side
+     * @param engine The engine to play the side
+     */
+    public void setEngine(int color, EnginePlayer engine) {
+        engines[color] = engine;
+        if (engine != null && !stopped && turn != null && color == position.getSideToMove()) {
+            engine.think();
+        }
+    }
+
+    public boolean isEngineToMove() {
+        return engines[position.getSideToMove()] != null;
+    }
+
+    /**
+     * Ends play on this board: stops engines thinking and ignores their
+     * moves from then on.
+     */
+    public void stop() {
+        stopped = true;
+        for (EnginePlayer engine : engines) {
+            if (engine != null) engine.stop();
         }
+    }
+
+    /**
+     * Plays a move found by an engine, unless the position has changed since
+     * the engine started thinking.
+     * 
+     * @param move The move to play
+     * @param key Hash of the position the move was searched in
+     */
+    public void playEngineMove(int move, long key) {
+        if (stopped || !isEngineToMove() || position.getHash() != key) return;
+        playMove(move);
+        repaint();
+    }
+
+    /**
+     * Makes a legal move on the position, hands the turn to the other
+     * player's clock and updates the pieces shown on the squares to match,
+     * then checks for the end of the game and lets an engine reply.
+     * 
+     * @param move The move to play
+     */
+    public void playMove(int move) {
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int capSq = Move.isEnPassant(move) ? (to + (getTurn() ? -8 : 8)) : to;
+        
+        Piece mover = getSquare(from).getOccupyingPiece();
+        Piece captured = getSquare(capSq).getOccupyingPiece();
         
-        board[7][3].put(new Queen(1, board[7][3], RESOURCES_WQUEEN_PNG));
-        board[0][3].put(new Queen(0, board[0][3], RESOURCES_BQUEEN_PNG));
+        position.makeMove(move);
+        if (g != null) g.moveMade(mover.getColor());
+        if (historySize == history.length) history = Arrays.copyOf(history, 2 * historySize);
+        history[historySize++] = move;
         
-        King bk = new King(0, board[0][4], RESOURCES_BKING_PNG);
-        King wk = new King(1, board[7][4], RESOURCES_WKING_PNG);
-        board[0][4].put(bk);
-        board[7][4].put(wk);
-
-        board[0][0].put(new Rook(0, board[0][0], RESOURCES_BROOK_PNG));
-        board[0][7].put(new Rook(0, board[0][7], RESOURCES_BROOK_PNG));
-        board[7][0].put(new Rook(1, board[7][0], RESOURCES_WROOK_PNG));
-        board[7][7].put(new Rook(1, board[7][7], RESOURCES_WROOK_PNG));
-
-        board[0][1].put(new Knight(0, board[0][1], RESOURCES_BKNIGHT_PNG));
-        board[0][6].put(new Knight(0, board[0][6], RESOURCES_BKNIGHT_PNG));
-        board[7][1].put(new Knight(1, board[7][1], RESOURCES_WKNIGHT_PNG));
-        board[7][6].put(new Knight(1, board[7][6], RESOURCES_WKNIGHT_PNG));
-
-        board[0][2].put(new Bishop(0, board[0][2], RESOURCES_BBISHOP_PNG));
-        board[0][5].put(new Bishop(0, board[0][5], RESOURCES_BBISHOP_PNG));
-        board[7][2].put(new Bishop(1, board[7][2], RESOURCES_WBISHOP_PNG));
-        board[7][5].put(new Bishop(1, board[7][5], RESOURCES_WBISHOP_PNG));
+        if (captured != null) {
+            if (captured.getColor() == 0) Bpieces.remove(captured);
+            else Wpieces.remove(captured);
+            getSquare(capSq).setOccupyingPiece(null);
+        }
+        getSquare(from).setOccupyingPiece(null);
         
+        if (Move.promotion(move) != 0) {
+            LinkedList<Piece> pieces = mover.getColor() == 0 ? Bpieces : Wpieces;
+            pieces.remove(mover);
+            mover = createPiece(position.pieceAt(to), getSquare(to));
+            pieces.add(mover);
+        }
+        getSquare(to).setOccupyingPiece(mover);
         
-        for(int y = 0; y < 2; y++) {
-            for (int x = 0; x < 8; x++) {
-                Bpieces.add(board[y][x].getOccupyingPiece());
-                Wpieces.add(board[7-y][x].getOccupyingPiece());
+        if (Move.isCastling(move)) {
+            int rookFrom = to > from ? from + 3 : from - 4;
+            int rookTo = to > from ? from + 1 : from - 1;
+            Piece rook = getSquare(rookFrom).getOccupyingPiece();
+            getSquare(rookFrom).setOccupyingPiece(null);
+            getSquare(rookTo).setOccupyingPiece(rook);
+        }
+        
+        beginTurn();
+    }
+
+    /*
+     * Starts working out the legal moves and status of the new turn on a
+     * copy of the position. The result is taken up on the event dispatch
+     * thread by endTurn.
+     */
+    private void beginTurn() {
+        final Position snapshot = new Position(position);
+        final int current = ++ply;
+        turn = null;
+
+        RULES.execute(new Runnable() {
+            public void run() {
+                final TurnState state = TurnState.compute(snapshot, current);
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        endTurn(state);
+                    }
+                });
             }
+        });
+    }
+
+    /**
+     * @return State of the current turn, or null while it is being computed.
+     */
+    public TurnState getTurnState() {
+        return turn;
+    }
+
+    /**
+     * @param from Square of a piece of the side to move
+     * @return Bitboard of the squares the piece can legally move to, empty
+     * while the turn is being computed.
+     */
+    public long getLegalTargets(int from) {
+        return turn == null ? 0 : turn.getTargets(from);
+    }
+
+    /**
+     * @param from Square the piece moves from
+     * @param to Square the piece moves to
+     * @return The legal move between the squares, promoting to a queen, or
+     * Move.NONE if there is none or the turn is being computed.
+     */
+    public int getLegalMove(int from, int to) {
+        return turn == null ? Move.NONE : turn.getMove(from, to);
+    }
+
+    /*
+     * Takes up the state of a new turn: ends the game on checkmate or a
+     * draw, otherwise passes the turn to an engine if one plays the side to
+     * move. States of turns that have since been played are dropped.
+     */
+    private void endTurn(TurnState state) {
+        if (stopped || state.getPly() != ply) return;
+        turn = state;
+        int color = state.getSideToMove();
+        
+        if (state.getStatus() == TurnState.CHECKMATE) {
+            result = color == Position.WHITE ? GameArchive.BLACK_WINS : GameArchive.WHITE_WINS;
+            gameOver();
+            if (g != null) g.checkmateOccurred(color);
+            return;
+        }
+        
+        if (state.getStatus() == TurnState.TABLEBASE && state.getTablebaseScore() != 0) {
+            int score = state.getTablebaseScore();
+            int winner = score > 0 ? color : color ^ 1;
+            result = winner == Position.WHITE ? GameArchive.WHITE_WINS : GameArchive.BLACK_WINS;
+            gameOver();
+            if (g != null) g.tablebaseWin(winner, Search.MATE - Math.abs(score));
+            return;
+        }
+        
+        String draw = state.getDrawReason();
+        if (draw != null) {
+            result = GameArchive.DRAW;
+            gameOver();
+            if (g != null) g.drawOccurred(draw);
+            return;
         }
         
-        cmd = new CheckmateDetector(this, Wpieces, Bpieces, wk, bk);
+        if (g != null) g.turnStarted();
+        if (engines[color] != null) engines[color].think();
+        repaint();
     }
 
-    public Square[][] getSquareArray() {
-        return this.board;
+    /**
+     * Ends the game as lost by a player whose time ran out.
+     */
+    public void timeLoss(int loser) {
+        if (stopped) return;
+        result = loser == Position.WHITE ? GameArchive.BLACK_WINS : GameArchive.WHITE_WINS;
+        gameOver();
+    }
+
+    private void gameOver() {
+        currPiece = null;
+        repaint();
+        this.removeMouseListener(this);
+        this.removeMouseMotionListener(this);
+        stop();
+        archive();
+    }
+
+    /*
+     * Appends the finished game to the archive named by the chess.archive
+     * system property, if it is set. The game is over, so the board no
+     * longer changes while the archive thread reads it.
+     */
+    private void archive() {
+        final String name = System.getProperty("chess.archive");
+        if (name == null) return;
+
+        ARCHIVE.execute(new Runnable() {
+            public void run() {
+                Path file = Paths.get(name);
+                try {
+                    if (archiveWriter == null) archiveWriter = new GameArchive.Writer(file);
+                    archiveWriter.append(Board.this);
+                    archiveWriter.flush();
+                } catch (IOException e) {
+                    System.err.println("Cannot write game archive " + file + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Position the game started from, in FEN.
+     */
+    public String getStartFen() {
+        return startFen;
+    }
+
+    /**
+     * @return The moves played so far, in order.
+     */
+    public int[] getMoves() {
+        return Arrays.copyOf(history, historySize);
+    }
+
+    /**
+     * @return Result of the game as a GameArchive result code, UNKNOWN while
+     * it is being played.
+     */
+    public int getResult() {
+        return result;
     }
 
     public boolean getTurn() {
-        return whiteTurn;
+        return position.isWhiteToMove();
     }
 
     public void setCurrPiece(Piece p) {
@@ -141,32 +466,120 @@ public class Board extends JPanel implements MouseListener, MouseMotionListener
 
     @Override
     public void paintComponent(Graphics g) {
-        // super.paintComponent(g);
+        g.drawImage(getBoardImage(), 0, 0, null);
+
+        if (isDragging()) {
+            long targets = getLegalTargets(currPiece.getPosition().getIndex());
+            g.setColor(TARGET_COLOR);
+            while (targets != 0) {
+                Square sq = getSquare(Long.numberOfTrailingZeros(targets));
+                g.fillRect(sq.getX(), sq.getY(), SQUARE_SIZE, SQUARE_SIZE);
+                targets &= targets - 1;
+            }
+            
+            g.drawImage(currPiece.getImage(), currX, currY, null);
+        }
+    }
 
-        for (int x = 0; x < 8; x++) {
-            for (int y = 0; y < 8; y++) {
-                Square sq = board[y][x];
-                sq.paintComponent(g);
+    private boolean isDragging() {
+        return currPiece != null && (currPiece.getColor() == 1) == getTurn();
+    }
+
+    /*
+     * Board and pieces as they stand, without the piece being dragged. While
+     * a piece is dragged only the sprite moves, so every frame copies this
+     * image instead of drawing the pieces again.
+     */
+    private BufferedImage getBoardImage() {
+        int hidden = isDragging() && !currPiece.getPosition().isDisplayed()
+                ? currPiece.getPosition().getIndex() : -1;
+
+        if (boardImage == null || boardHash != position.getHash() || boardHidden != hidden) {
+            if (boardImage == null) boardImage = createBoardImage();
+            Graphics bg = boardImage.getGraphics();
+            bg.drawImage(getBackgroundImage(), 0, 0, null);
+
+            for (int x = 0; x < 8; x++) {
+                for (int y = 0; y < 8; y++) {
+                    Square sq = board[y][x];
+                    if (sq.isOccupied() && sq.isDisplayed()) sq.getOccupyingPiece().draw(bg);
+                }
             }
+
+            bg.dispose();
+            boardHash = position.getHash();
+            boardHidden = hidden;
         }
+        return boardImage;
+    }
 
-        if (currPiece != null) {
-            if ((currPiece.getColor() == 1 && whiteTurn)
-                    || (currPiece.getColor() == 0 && !whiteTurn)) {
-                final Image i = currPiece.getImage();
-                g.drawImage(i, currX, currY, null);
+    /*
+     * Moves the dragged sprite, repainting only the area it left and the
+     * area it now covers.
+     */
+    private void moveDraggedPiece(int x, int y) {
+        if (!isDragging()) return;
+
+        Rectangle dirty = new Rectangle(currX, currY, Sprites.PIECE_SIZE, Sprites.PIECE_SIZE);
+        dirty.add(new Rectangle(x, y, Sprites.PIECE_SIZE, Sprites.PIECE_SIZE));
+        currX = x;
+        currY = y;
+
+        repaint(dirty);
+    }
+
+    /*
+     * One frame at the display's refresh rate, or 60 Hz if it is unknown.
+     */
+    private static int frameMillis() {
+        int rate = DisplayMode.REFRESH_RATE_UNKNOWN;
+        if (!GraphicsEnvironment.isHeadless()) {
+            rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDisplayMode().getRefreshRate();
+        }
+        if (rate == DisplayMode.REFRESH_RATE_UNKNOWN || rate <= 0) rate = 60;
+        return Math.max(1, 1000 / rate);
+    }
+
+    /*
+     * The squares never change color, so they are painted once into an
+     * image in the screen's format and copied from there.
+     */
+    private BufferedImage getBackgroundImage() {
+        if (background == null) {
+            background = createBoardImage();
+            Graphics bg = background.getGraphics();
+
+            for (int x = 0; x < 8; x++) {
+                for (int y = 0; y < 8; y++) {
+                    Square sq = board[y][x];
+                    bg.setColor(SQUARE_COLORS[sq.getColor()]);
+                    bg.fillRect(sq.getX(), sq.getY(), SQUARE_SIZE, SQUARE_SIZE);
+                }
             }
+
+            bg.dispose();
+        }
+        return background;
+    }
+
+    private BufferedImage createBoardImage() {
+        if (getGraphicsConfiguration() == null) {
+            return new BufferedImage(BOARD_SIZE, BOARD_SIZE, BufferedImage.TYPE_INT_RGB);
         }
+        return getGraphicsConfiguration().createCompatibleImage(BOARD_SIZE, BOARD_SIZE);
     }
 
     @Override
     public void mousePressed(MouseEvent e) {
-        currX = e.getX();
-        currY = e.getY();
+        if (turn == null || isEngineToMove()) return;
+        boolean whiteTurn = getTurn();
+        currX = e.getX() - Sprites.PIECE_SIZE / 2;
+        currY = e.getY() - Sprites.PIECE_SIZE / 2;
 
-        Square sq = (Square) this.getComponentAt(new Point(e.getX(), e.getY()));
+        Square sq = getSquareAt(e.getX(), e.getY());
 
-        if (sq.isOccupied()) {
+        if (sq != null && sq.isOccupied()) {
             currPiece = sq.getOccupyingPiece();
             if (currPiece.getColor() == 0 && whiteTurn)
                 return;
@@ -179,7 +592,9 @@ public class Board extends JPanel implements MouseListener, MouseMotionListener
 
     @Override
     public void mouseReleased(MouseEvent e) {
-        Square sq = (Square) this.getComponentAt(new Point(e.getX(), e.getY()));
+        frameTimer.stop();
+        Square sq = getSquareAt(e.getX(), e.getY());
+        boolean whiteTurn = getTurn();
 
         if (currPiece != null) {
             if (currPiece.getColor() == 0 && whiteTurn)
@@ -187,33 +602,17 @@ public class Board extends JPanel implements MouseListener, MouseMotionListener
             if (currPiece.getColor() == 1 && !whiteTurn)
                 return;
 
-            List<Square> legalMoves = currPiece.getLegalMoves(this);
-            movable = cmd.getAllowableSquares(whiteTurn);
-
-            if (legalMoves.contains(sq) && movable.contains(sq)
-                    && cmd.testMove(currPiece, sq)) {
-                sq.setDisplay(true);
-                currPiece.move(sq);
-                cmd.update();
-
-                if (cmd.blackCheckMated()) {
-                    currPiece = null;
-                    repaint();
-                    this.removeMouseListener(this);
-                    this.removeMouseMotionListener(this);
-                    g.checkmateOccurred(0);
-                } else if (cmd.whiteCheckMated()) {
-                    currPiece = null;
-                    repaint();
-                    this.removeMouseListener(this);
-                    this.removeMouseMotionListener(this);
-                    g.checkmateOccurred(1);
-                } else {
-                    currPiece = null;
-                    whiteTurn = !whiteTurn;
-                    movable = cmd.getAllowableSquares(whiteTurn);
-                }
+            // A drop off the board has no move and puts the piece back
+            int from = currPiece.getPosition().getIndex();
+            int move = sq == null ? Move.NONE : getLegalMove(from, sq.getIndex());
 
+            if (move != Move.NONE && Move.promotion(move) != 0) {
+                move = Move.promotion(from, sq.getIndex(), choosePromotion());
+            }
+
+            if (move != Move.NONE) {
+                currPiece = null;
+                playMove(move);
             } else {
                 currPiece.getPosition().setDisplay(true);
                 currPiece = null;
@@ -223,12 +622,25 @@ public class Board extends JPanel implements MouseListener, MouseMotionListener
         repaint();
     }
 
+    /*
+     * Asks which piece a pawn promotes to. Without a window, or if the
+     * question is dismissed, it becomes a queen.
+     */
+    private int choosePromotion() {
+        if (g == null) return Position.QUEEN;
+        
+        int n = JOptionPane.showOptionDialog(this, "Promote the pawn to:",
+                "Promotion", JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE,
+                null, PROMOTION_CHOICES, PROMOTION_CHOICES[0]);
+        return n < 0 ? Position.QUEEN : PROMOTION_TYPES[n];
+    }
+
     @Override
     public void mouseDragged(MouseEvent e) {
-        currX = e.getX() - 24;
-        currY = e.getY() - 24;
+        dragX = e.getX() - Sprites.PIECE_SIZE / 2;
+        dragY = e.getY() - Sprites.PIECE_SIZE / 2;
 
-        repaint();
+        if (!frameTimer.isRunning()) frameTimer.start();
     }
 
     // Irrelevant methods, do nothing for these mouse behaviors
@@ -1,35 +1,162 @@
-
+/**
+ * A player's chess clock. Time is measured with System.nanoTime between
+ * the moments the clock is started and a move is made, so it is exact to
+ * the millisecond however often the display is refreshed.
+ *
+ * After every move the clock adds a Fischer increment and gives back a
+ * Bronstein delay: the time the move took, up to the delay. A clock that
+ * runs out before the move is made gets neither.
+ *
+ * Methods that take the time as a System.nanoTime value let a caller
+ * switch both clocks at exactly the same moment.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
 public class Clock {
-    private int hh;
-    private int mm;
-    private int ss;
-    
-    public Clock(int hh, int mm, int ss) {
-        this.hh = hh;
-        this.mm = mm;
-        this.ss = ss;
-    }
-    
+    // Length of the longest text written by format, e.g. "00:00:09.5"
+    public static final int FORMAT_LENGTH = 10;
+    // Below this many milliseconds the display shows tenths of a second
+    private static final long TENTHS_BELOW = 10000;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final long increment;
+    private final long delay;
+    // Nanoseconds left when the clock was last stopped
+    private long remaining;
+    private long startedAt;
+    private boolean running;
+
+    /**
+     * @param millis Time for the game in milliseconds
+     * @param increment Milliseconds added after each move
+     * @param delay Milliseconds of each move that are given back
+     */
+    public Clock(long millis, long increment, long delay) {
+        this.remaining = millis * NANOS_PER_MILLI;
+        this.increment = increment * NANOS_PER_MILLI;
+        this.delay = delay * NANOS_PER_MILLI;
+    }
+
+    public void start() {
+        start(System.nanoTime());
+    }
+
+    /**
+     * Starts the clock as the player's turn begins.
+     *
+     * @param now The current System.nanoTime
+     */
+    public void start(long now) {
+        if (running) return;
+        startedAt = now;
+        running = true;
+    }
+
+    /**
+     * Stops the clock as the player completes a move, and adds the
+     * increment and delay unless the time ran out first.
+     *
+     * @param now The current System.nanoTime
+     * @return Whether the move was made in time.
+     */
+    public boolean moveMade(long now) {
+        if (!running) return remaining > 0;
+
+        long used = now - startedAt;
+        running = false;
+        remaining -= used;
+        if (remaining <= 0) {
+            remaining = 0;
+            return false;
+        }
+
+        remaining += Math.min(used, delay) + increment;
+        return true;
+    }
+
+    /**
+     * Stops the clock without adding anything, e.g. when the game ends.
+     *
+     * @param now The current System.nanoTime
+     */
+    public void stop(long now) {
+        remaining = getRemainingNanos(now);
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @param now The current System.nanoTime
+     * @return Nanoseconds left, never below 0.
+     */
+    public long getRemainingNanos(long now) {
+        long left = running ? remaining - (now - startedAt) : remaining;
+        return Math.max(0, left);
+    }
+
+    /**
+     * @param now The current System.nanoTime
+     * @return Milliseconds left, never below 0.
+     */
+    public long getRemaining(long now) {
+        return getRemainingNanos(now) / NANOS_PER_MILLI;
+    }
+
+    public long getRemaining() {
+        return getRemaining(System.nanoTime());
+    }
+
+    public boolean outOfTime(long now) {
+        return getRemainingNanos(now) == 0;
+    }
+
     public boolean outOfTime() {
-        return (hh == 0 && mm == 0 && ss == 0);
-    }
-    
-    public void decr() {
-        if (this.mm == 0 && this.ss == 0) {
-            this.ss = 59;
-            this.mm = 59;
-            this.hh--;
-        } else if (this.ss == 0) {
-            this.ss = 59;
-            this.mm--;
-        } else this.ss--;
-    }
-    
+        return outOfTime(System.nanoTime());
+    }
+
+    /**
+     * Writes the time left as hh:mm:ss, followed by tenths of a second when
+     * less than ten seconds are left, without allocating.
+     *
+     * @param buffer Where to write, with room for FORMAT_LENGTH chars
+     * @param offset Index of the first char to write
+     * @param now The current System.nanoTime
+     * @return Number of chars written.
+     */
+    public int format(char[] buffer, int offset, long now) {
+        long millis = getRemaining(now);
+        long seconds = millis / 1000;
+        int i = offset;
+
+        i = twoDigits(buffer, i, seconds / 3600);
+        buffer[i++] = ':';
+        i = twoDigits(buffer, i, seconds / 60 % 60);
+        buffer[i++] = ':';
+        i = twoDigits(buffer, i, seconds % 60);
+
+        if (millis < TENTHS_BELOW) {
+            buffer[i++] = '.';
+            buffer[i++] = (char) ('0' + millis / 100 % 10);
+        }
+        return i - offset;
+    }
+
+    private static int twoDigits(char[] buffer, int i, long value) {
+        buffer[i] = (char) ('0' + value / 10 % 10);
+        buffer[i + 1] = (char) ('0' + value % 10);
+        return i + 2;
+    }
+
+    /**
+     * @return The time left as written by format.
+     */
     public String getTime() {
-        String fHrs = String.format("%02d", this.hh);
-        String fMins = String.format("%02d", this.mm);
-        String fSecs = String.format("%02d", this.ss);
-        String fTime = fHrs + ":" + fMins + ":" + fSecs;
-        return fTime;
+        char[] buffer = new char[FORMAT_LENGTH];
+        return new String(buffer, 0, format(buffer, 0, System.nanoTime()));
     }
 }
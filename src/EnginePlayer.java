@@ -0,0 +1,96 @@
+import java.util.Random;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Computer opponent for one side of a game. When it is asked for a move it
+ * plays from the opening book if the position is in it, and otherwise
+ * searches a copy of the board's position on a background thread. The move
+ * is played back through the Board on the event dispatch thread.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class EnginePlayer {
+    public static final long DEFAULT_MOVE_TIME = 1000;
+    public static final int DEFAULT_MAX_DEPTH = 64;
+
+    private final Board board;
+    private final long moveTime;
+    private final int maxDepth;
+    // Kept from move to move, so earlier searches help later ones
+    private final TranspositionTable table;
+    private final OpeningBook book;
+    private final Random random = new Random();
+
+    private volatile Search search;
+
+    /**
+     * Constructs an engine player thinking for the default time per move.
+     *
+     * @param board The board to play on
+     */
+    public EnginePlayer(Board board) {
+        this(board, DEFAULT_MOVE_TIME, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param board The board to play on
+     * @param moveTime Milliseconds to think per move
+     * @param maxDepth Deepest iteration to search
+     */
+    public EnginePlayer(Board board, long moveTime, int maxDepth) {
+        this(board, moveTime, maxDepth, OpeningBook.getDefault());
+    }
+
+    /**
+     * @param board The board to play on
+     * @param moveTime Milliseconds to think per move
+     * @param maxDepth Deepest iteration to search
+     * @param book Book to play openings from, or null to always search
+     */
+    public EnginePlayer(Board board, long moveTime, int maxDepth, OpeningBook book) {
+        this.board = board;
+        this.moveTime = moveTime;
+        this.maxDepth = maxDepth;
+        this.book = book;
+        this.table = new TranspositionTable(TranspositionTable.DEFAULT_MEGABYTES);
+    }
+
+    /**
+     * Starts searching the board's current position. Returns immediately;
+     * the move is played on the board when the search finishes.
+     */
+    public void think() {
+        final Position root = new Position(board.getPosition());
+        final long key = root.getHash();
+        final Search s = new Search(root, table);
+        search = s;
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                int found = book == null ? Move.NONE : book.choose(root, random);
+                if (found == Move.NONE) found = s.search(maxDepth, moveTime);
+                if (found == Move.NONE) return;
+
+                final int move = found;
+
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        board.playEngineMove(move, key);
+                    }
+                });
+            }
+        }, "Engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops a search in progress. Its move is not played.
+     */
+    public void stop() {
+        Search s = search;
+        if (s != null) s.stop();
+    }
+}
@@ -0,0 +1,137 @@
+
+/**
+ * Static evaluation of a Position for the search: material plus
+ * piece-square tables, with the king table blended between middlegame and
+ * endgame by the amount of material left.
+ *
+ * Scores are in centipawns from the point of view of the side to move.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class Evaluator {
+    public static final int[] PIECE_VALUES = {100, 320, 330, 500, 900, 0};
+
+    // Piece-square tables from white's point of view, rank 8 first as the
+    // board is displayed
+    private static final int[][] TABLES = {
+        { // pawn
+             0,  0,  0,  0,  0,  0,  0,  0,
+            50, 50, 50, 50, 50, 50, 50, 50,
+            10, 10, 20, 30, 30, 20, 10, 10,
+             5,  5, 10, 25, 25, 10,  5,  5,
+             0,  0,  0, 20, 20,  0,  0,  0,
+             5, -5,-10,  0,  0,-10, -5,  5,
+             5, 10, 10,-20,-20, 10, 10,  5,
+             0,  0,  0,  0,  0,  0,  0,  0
+        },
+        { // knight
+            -50,-40,-30,-30,-30,-30,-40,-50,
+            -40,-20,  0,  0,  0,  0,-20,-40,
+            -30,  0, 10, 15, 15, 10,  0,-30,
+            -30,  5, 15, 20, 20, 15,  5,-30,
+            -30,  0, 15, 20, 20, 15,  0,-30,
+            -30,  5, 10, 15, 15, 10,  5,-30,
+            -40,-20,  0,  5,  5,  0,-20,-40,
+            -50,-40,-30,-30,-30,-30,-40,-50
+        },
+        { // bishop
+            -20,-10,-10,-10,-10,-10,-10,-20,
+            -10,  0,  0,  0,  0,  0,  0,-10,
+            -10,  0,  5, 10, 10,  5,  0,-10,
+            -10,  5,  5, 10, 10,  5,  5,-10,
+            -10,  0, 10, 10, 10, 10,  0,-10,
+            -10, 10, 10, 10, 10, 10, 10,-10,
+            -10,  5,  0,  0,  0,  0,  5,-10,
+            -20,-10,-10,-10,-10,-10,-10,-20
+        },
+        { // rook
+              0,  0,  0,  0,  0,  0,  0,  0,
+              5, 10, 10, 10, 10, 10, 10,  5,
+             -5,  0,  0,  0,  0,  0,  0, -5,
+             -5,  0,  0,  0,  0,  0,  0, -5,
+             -5,  0,  0,  0,  0,  0,  0, -5,
+             -5,  0,  0,  0,  0,  0,  0, -5,
+             -5,  0,  0,  0,  0,  0,  0, -5,
+              0,  0,  0,  5,  5,  0,  0,  0
+        },
+        { // queen
+            -20,-10,-10, -5, -5,-10,-10,-20,
+            -10,  0,  0,  0,  0,  0,  0,-10,
+            -10,  0,  5,  5,  5,  5,  0,-10,
+             -5,  0,  5,  5,  5,  5,  0, -5,
+              0,  0,  5,  5,  5,  5,  0, -5,
+            -10,  5,  5,  5,  5,  5,  0,-10,
+            -10,  0,  5,  0,  0,  0,  0,-10,
+            -20,-10,-10, -5, -5,-10,-10,-20
+        },
+        { // king, middlegame
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -20,-30,-30,-40,-40,-30,-30,-20,
+            -10,-20,-20,-20,-20,-20,-20,-10,
+             20, 20,  0,  0,  0,  0, 20, 20,
+             20, 30, 10,  0,  0, 10, 30, 20
+        }
+    };
+
+    private static final int[] KING_ENDGAME = {
+        -50,-40,-30,-20,-20,-30,-40,-50,
+        -30,-20,-10,  0,  0,-10,-20,-30,
+        -30,-10, 20, 30, 30, 20,-10,-30,
+        -30,-10, 30, 40, 40, 30,-10,-30,
+        -30,-10, 30, 40, 40, 30,-10,-30,
+        -30,-10, 20, 30, 30, 20,-10,-30,
+        -30,-30,  0,  0,  0,  0,-30,-30,
+        -50,-30,-30,-30,-30,-30,-30,-50
+    };
+
+    // Non-pawn material of both sides at the start of the game
+    private static final int OPENING_MATERIAL = 2 * (2 * 320 + 2 * 330 + 2 * 500 + 900);
+
+    private Evaluator() {
+    }
+
+    /**
+     * @param p Position to evaluate
+     * @return Score in centipawns, positive if the side to move is better.
+     */
+    public static int evaluate(Position p) {
+        int score = 0;
+        int material = 0;
+
+        for (int c = 0; c < 2; c++) {
+            int sign = (c == Position.WHITE) ? 1 : -1;
+            // Tables are laid out rank 8 first, so white flips the index
+            int flip = (c == Position.WHITE) ? 56 : 0;
+
+            for (int type = Position.PAWN; type < Position.KING; type++) {
+                long bits = p.pieces(c, type);
+                int count = Long.bitCount(bits);
+                score += sign * count * PIECE_VALUES[type];
+                if (type != Position.PAWN) material += count * PIECE_VALUES[type];
+
+                while (bits != 0) {
+                    score += sign * TABLES[type][Long.numberOfTrailingZeros(bits) ^ flip];
+                    bits &= bits - 1;
+                }
+            }
+        }
+
+        // Blend the king tables: middlegame weight falls as material comes off
+        int phase = Math.min(material, OPENING_MATERIAL);
+        for (int c = 0; c < 2; c++) {
+            int king = p.kingSquare(c);
+            if (king == Position.NO_SQUARE) continue;
+
+            int index = king ^ ((c == Position.WHITE) ? 56 : 0);
+            int kingScore = (TABLES[Position.KING][index] * phase
+                    + KING_ENDGAME[index] * (OPENING_MATERIAL - phase)) / OPENING_MATERIAL;
+            score += (c == Position.WHITE) ? kingScore : -kingScore;
+        }
+
+        return p.isWhiteToMove() ? score : -score;
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads files of positions, one FEN or EPD line each, as fast as the parser
+ * allows. The file is memory mapped and every line is parsed in place into
+ * one reused Position, so no Strings are created per position. Blank lines
+ * and lines starting with '#' are skipped.
+ *
+ * Usage: java FenFile file...
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class FenFile {
+    // Mapped at a time; lines never span two segments
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * Receives each position read. The position object is reused for the
+     * next line, so it must be copied to be kept.
+     */
+    public interface Visitor {
+        void visit(Position p, long line);
+    }
+
+    private FenFile() {
+    }
+
+    /**
+     * Parses every line of a file and passes the positions to a visitor.
+     * Lines that are not valid FEN are reported and skipped.
+     *
+     * @param file File to read
+     * @param visitor Receives the positions
+     * @return Number of positions read
+     * @throws IOException if the file cannot be read
+     */
+    public static long read(Path file, Visitor visitor) throws IOException {
+        Position p = new Position();
+        long count = 0;
+        long line = 0;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long offset = 0;
+
+            while (offset < size) {
+                long length = Math.min(SEGMENT_SIZE, size - offset);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                AsciiSequence text = new AsciiSequence(buffer);
+                boolean last = offset + length == size;
+                int limit = (int) length;
+                int start = 0;
+
+                for (int i = 0; i < limit; i++) {
+                    if (buffer.get(i) != '\n') continue;
+                    line++;
+                    count += parseLine(text, start, i, p, line, visitor);
+                    start = i + 1;
+                }
+
+                if (last && start < limit) {
+                    line++;
+                    count += parseLine(text, start, limit, p, line, visitor);
+                    start = limit;
+                }
+
+                // Continue from the start of the unfinished line
+                if (!last && start == 0) throw new IOException("Line too long in " + file);
+                offset += last ? length : start;
+            }
+        }
+
+        return count;
+    }
+
+    private static int parseLine(AsciiSequence text, int start, int end, Position p,
+            long line, Visitor visitor) {
+        text.setRange(0, end);
+        if (end > start && text.charAt(end - 1) == '\r') end--;
+        while (start < end && text.charAt(start) <= ' ') start++;
+        if (start == end || text.charAt(start) == '#') return 0;
+
+        text.setRange(start, end);
+        try {
+            p.setFen(text, 0, end - start);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Line " + line + ": " + e.getMessage());
+            return 0;
+        }
+
+        visitor.visit(p, line);
+        return 1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final long[] checksum = new long[1];
+        Visitor hashes = new Visitor() {
+            public void visit(Position p, long line) {
+                checksum[0] ^= p.getHash();
+            }
+        };
+
+        for (String name : args) {
+            long start = System.nanoTime();
+            long count = read(Paths.get(name), hashes);
+            long nanos = System.nanoTime() - start;
+
+            System.out.println(name + ": " + count + " positions in " + nanos / 1000000
+                    + " ms, " + (long) (count * 1e9 / Math.max(1, nanos)) + " positions/s"
+                    + ", checksum " + Long.toHexString(checksum[0]));
+        }
+    }
+}
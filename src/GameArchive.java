@@ -0,0 +1,441 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary file of games, read through memory maps so any game can be
+ * found by its index and large archives can be scanned without loading them
+ * onto the heap.
+ *
+ * The file starts with the bytes "CJGA" and a format version, both four
+ * bytes. Each game follows as one record:
+ *
+ *   2 bytes   number of plies
+ *   1 byte    result: UNKNOWN, WHITE_WINS, BLACK_WINS or DRAW
+ *   1 byte    length of the starting FEN, 0 for the standard start
+ *   n bytes   starting FEN in ASCII
+ *   2 bytes   for every ply, the move's code (see Move.code)
+ *
+ * Numbers are little endian. Records are only ever appended, so a record
+ * cut short by a crash is ignored by readers and dropped by the next writer.
+ *
+ * Usage: java GameArchive file [game]
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class GameArchive implements Closeable {
+    // Results of a game
+    public static final int UNKNOWN = 0;
+    public static final int WHITE_WINS = 1;
+    public static final int BLACK_WINS = 2;
+    public static final int DRAW = 3;
+
+    public static final int MAX_PLIES = 0xFFFF;
+
+    private static final String[] RESULT_NAMES = {"*", "1-0", "0-1", "1/2-1/2"};
+
+    // "CJGA" read as a little endian int
+    private static final int MAGIC = 0x41474A43;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 4;
+    private static final int MAX_RECORD_SIZE = RECORD_HEADER_SIZE + 255 + 2 * MAX_PLIES;
+
+    // Mapped at a time; records never span two segments
+    private static final long SEGMENT_SIZE = 1L << 30;
+    // Read at a time when a writer looks for the end of the last record
+    private static final int SCAN_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    // Where each record is: segment index in the high 32 bits and offset
+    // within the segment in the low 32 bits
+    private long[] records = new long[1024];
+    private int size;
+
+    /**
+     * Opens an archive for reading and indexes its games.
+     *
+     * @param file File to read
+     * @throws IOException if the file cannot be read or is not an archive
+     */
+    public GameArchive(Path file) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.READ), file);
+    }
+
+    private GameArchive(FileChannel channel, Path file) throws IOException {
+        this.channel = channel;
+        try {
+            readHeader(channel, file);
+            index();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void readHeader(FileChannel channel, Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0);
+        if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a game archive");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException(file + " has unsupported version " + header.getInt(4));
+        }
+    }
+
+    /*
+     * Maps the file segment by segment, cutting each segment at the end of
+     * the last record that fits in it, and notes where every record starts.
+     */
+    private void index() throws IOException {
+        long fileSize = channel.size();
+        long base = HEADER_SIZE;
+
+        while (base < fileSize) {
+            long mapped = Math.min(SEGMENT_SIZE, fileSize - base);
+            MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, base, mapped);
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            int limit = (int) mapped;
+            int pos = 0;
+
+            while (pos + RECORD_HEADER_SIZE <= limit) {
+                int next = pos + recordSize(b, pos);
+                if (next > limit) break;
+                if (size == records.length) records = Arrays.copyOf(records, 2 * size);
+                records[size++] = ((long) segments.size() << 32) | pos;
+                pos = next;
+            }
+
+            // Anything left at the end of the file is an unfinished record
+            if (pos == 0) break;
+            segments.add(b);
+            base += pos;
+            if (base + (limit - pos) == fileSize) break;
+        }
+    }
+
+    private static int recordSize(ByteBuffer b, int pos) {
+        int plies = b.getShort(pos) & 0xFFFF;
+        int fenLength = b.get(pos + 3) & 0xFF;
+        return RECORD_HEADER_SIZE + fenLength + 2 * plies;
+    }
+
+    /*
+     * Finds the end of the last complete record by reading the record
+     * headers in order. The file is read, not mapped, so it can be
+     * truncated straight after.
+     */
+    private static long endOfRecords(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer b = ByteBuffer.allocate(SCAN_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        b.limit(0);
+        long bufferStart = HEADER_SIZE;
+        long end = HEADER_SIZE;
+
+        while (end + RECORD_HEADER_SIZE <= fileSize) {
+            if (end + RECORD_HEADER_SIZE > bufferStart + b.limit()) {
+                b.clear();
+                bufferStart = end;
+                while (b.hasRemaining() && channel.read(b, bufferStart + b.position()) > 0);
+                b.flip();
+            }
+            long next = end + recordSize(b, (int) (end - bufferStart));
+            if (next > fileSize) break;
+            end = next;
+        }
+
+        return end;
+    }
+
+    /**
+     * @return Number of games in the archive.
+     */
+    public int size() {
+        return size;
+    }
+
+    private MappedByteBuffer segment(int game) {
+        if (game < 0 || game >= size) {
+            throw new IndexOutOfBoundsException("Game " + game + " of " + size);
+        }
+        return segments.get((int) (records[game] >>> 32));
+    }
+
+    private int offset(int game) {
+        return (int) records[game];
+    }
+
+    public int getPlyCount(int game) {
+        return segment(game).getShort(offset(game)) & 0xFFFF;
+    }
+
+    /**
+     * @return UNKNOWN, WHITE_WINS, BLACK_WINS or DRAW
+     */
+    public int getResult(int game) {
+        return segment(game).get(offset(game) + 2);
+    }
+
+    /**
+     * @return Position the game starts from in FEN, or null for the
+     * standard starting position.
+     */
+    public String getStartFen(int game) {
+        MappedByteBuffer b = segment(game);
+        int start = offset(game) + RECORD_HEADER_SIZE;
+        int fenLength = b.get(start - 1) & 0xFF;
+        if (fenLength == 0) return null;
+        return new AsciiSequence(b).setRange(start, start + fenLength).toString();
+    }
+
+    /**
+     * Sets a position to the one a game starts from, reading the FEN in
+     * place.
+     *
+     * @param game Index of the game
+     * @param p Position to set. Its contents are replaced.
+     */
+    public void setStartPosition(int game, Position p) {
+        MappedByteBuffer b = segment(game);
+        int start = offset(game) + RECORD_HEADER_SIZE;
+        int fenLength = b.get(start - 1) & 0xFF;
+
+        if (fenLength == 0) {
+            p.setFen(Perft.START_FEN, 0, Perft.START_FEN.length());
+        } else {
+            p.setFen(new AsciiSequence(b).setRange(start, start + fenLength), 0, fenLength);
+        }
+    }
+
+    /**
+     * @param game Index of the game
+     * @param ply Index of the move in the game
+     * @return Code of the move; see Move.fromCode.
+     */
+    public int getMoveCode(int game, int ply) {
+        MappedByteBuffer b = segment(game);
+        int pos = offset(game);
+        if (ply < 0 || ply >= (b.getShort(pos) & 0xFFFF)) {
+            throw new IndexOutOfBoundsException("Ply " + ply + " of game " + game);
+        }
+        return b.getShort(pos + RECORD_HEADER_SIZE + (b.get(pos + 3) & 0xFF) + 2 * ply) & 0xFFFF;
+    }
+
+    /**
+     * Replays a game, leaving the position after its last move. The moves
+     * are trusted and not checked for legality.
+     *
+     * @param game Index of the game
+     * @param p Position to replay the game on. Its contents are replaced.
+     * @param moves Receives the full moves of the game. Must hold at least
+     * getPlyCount(game) moves.
+     * @return Number of moves in the game
+     */
+    public int replay(int game, Position p, int[] moves) {
+        setStartPosition(game, p);
+        MappedByteBuffer b = segment(game);
+        int pos = offset(game);
+        int plies = b.getShort(pos) & 0xFFFF;
+        pos += RECORD_HEADER_SIZE + (b.get(pos + 3) & 0xFF);
+
+        for (int i = 0; i < plies; i++, pos += 2) {
+            int move = Move.fromCode(p, b.getShort(pos) & 0xFFFF);
+            moves[i] = move;
+            p.makeMove(move);
+        }
+
+        return plies;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Appends games to an archive, creating the file if needed. Games are
+     * buffered and written in large blocks.
+     */
+    public static final class Writer implements Closeable {
+        private static final int BUFFER_SIZE = 1 << 20;
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long games;
+
+        /**
+         * @param file Archive to append to
+         * @throws IOException if the file cannot be opened or is not an
+         * archive
+         */
+        public Writer(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            try {
+                if (channel.size() == 0) {
+                    buffer.putInt(MAGIC).putInt(VERSION);
+                } else {
+                    // Drop a record left unfinished by an earlier writer
+                    readHeader(channel, file);
+                    long end = endOfRecords(channel);
+                    if (end < channel.size()) channel.truncate(end);
+                }
+                channel.position(channel.size());
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Appends a game.
+         *
+         * @param startFen Position the game starts from, or null for the
+         * standard starting position
+         * @param moves The moves of the game
+         * @param count Number of moves
+         * @param result UNKNOWN, WHITE_WINS, BLACK_WINS or DRAW
+         * @throws IOException if the game cannot be written
+         */
+        public void append(String startFen, int[] moves, int count, int result) throws IOException {
+            if (Perft.START_FEN.equals(startFen)) startFen = null;
+            int fenLength = startFen == null ? 0 : startFen.length();
+            if (fenLength > 255) throw new IllegalArgumentException("FEN too long: " + startFen);
+            if (count > MAX_PLIES) throw new IllegalArgumentException("Too many moves: " + count);
+            if (result < UNKNOWN || result > DRAW) throw new IllegalArgumentException("Result " + result);
+
+            if (buffer.remaining() < MAX_RECORD_SIZE) flush();
+            buffer.putShort((short) count).put((byte) result).put((byte) fenLength);
+            if (startFen != null) buffer.put(startFen.getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < count; i++) {
+                buffer.putShort((short) Move.code(moves[i]));
+            }
+            games++;
+        }
+
+        /**
+         * Appends the game played on a board so far.
+         */
+        public void append(Board board) throws IOException {
+            int[] moves = board.getMoves();
+            append(board.getStartFen(), moves, moves.length, board.getResult());
+        }
+
+        /**
+         * @return Number of games appended by this writer.
+         */
+        public long getGameCount() {
+            return games;
+        }
+
+        /**
+         * Writes the buffered games to the file.
+         */
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return The result as written in PGN, e.g. "1-0".
+     */
+    public static String resultName(int result) {
+        return RESULT_NAMES[result];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java GameArchive file [game]");
+            System.exit(2);
+        }
+
+        try (GameArchive archive = new GameArchive(Paths.get(args[0]))) {
+            Position p = new Position();
+            int[] moves = new int[MAX_PLIES];
+            int[] legal = new int[MoveGenerator.MAX_MOVES];
+
+            if (args.length > 1) {
+                // Print one game in SAN
+                int game = Integer.parseInt(args[1]);
+                int plies = archive.replay(game, p, moves);
+                archive.setStartPosition(game, p);
+                String fen = archive.getStartFen(game);
+
+                StringBuilder sb = new StringBuilder();
+                if (fen != null) sb.append("[FEN \"").append(fen).append("\"]\n\n");
+                for (int i = 0; i < plies; i++) {
+                    if (p.isWhiteToMove()) sb.append(p.getFullmoveNumber()).append(". ");
+                    else if (i == 0) sb.append(p.getFullmoveNumber()).append("... ");
+                    sb.append(San.toString(p, moves[i], legal)).append(' ');
+                    p.makeMove(moves[i]);
+                }
+                System.out.println(sb.append(resultName(archive.getResult(game))));
+                return;
+            }
+
+            // Replay every game, checking each move is legal
+            long[] results = new long[4];
+            long plies = 0;
+            int illegal = 0;
+            long start = System.nanoTime();
+
+            for (int game = 0; game < archive.size(); game++) {
+                results[archive.getResult(game)]++;
+                archive.setStartPosition(game, p);
+                int count = archive.getPlyCount(game);
+                for (int i = 0; i < count; i++) {
+                    int move = Move.fromCode(p, archive.getMoveCode(game, i));
+                    if (!isLegal(p, move, legal)) {
+                        if (++illegal <= 20) {
+                            System.err.println("Game " + game + ", ply " + (i + 1)
+                                    + ": illegal move " + Move.toString(move));
+                        }
+                        break;
+                    }
+                    p.makeMove(move);
+                }
+                plies += count;
+            }
+
+            long nanos = Math.max(1, System.nanoTime() - start);
+            System.out.println(archive.size() + " games, " + plies + " plies, " + illegal
+                    + " with illegal moves in " + nanos / 1000000 + " ms ("
+                    + (long) (plies * 1e9 / nanos) + " plies/s)");
+            System.out.println("1-0: " + results[WHITE_WINS] + ", 0-1: " + results[BLACK_WINS]
+                    + ", 1/2-1/2: " + results[DRAW] + ", *: " + results[UNKNOWN]);
+            if (illegal > 0) System.exit(1);
+        }
+    }
+
+    private static boolean isLegal(Position p, int move, int[] legal) {
+        int n = MoveGenerator.generate(p, legal, 0);
+        for (int i = 0; i < n; i++) {
+            if (legal[i] == move) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,545 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Headless server hosting many games at once over a line based TCP
+ * protocol, for tournaments and other programs that play without Swing.
+ *
+ * One thread runs every connection and game through a selector, so a game
+ * costs only its position, clocks and move list. Games belong to the
+ * connection that created them and are removed when it closes or ends
+ * them; finished games can be appended to a game archive.
+ *
+ * Commands, one per line, are answered with one line starting "OK" or
+ * "ERR":
+ *
+ *   NEW [seconds [inc [delay]]] [fen] start a game, untimed for 0 seconds
+ *                                     -> OK id
+ *   MOVE id move                      play a move in UCI or SAN
+ *                                     -> OK uci status result wtime btime
+ *   SHOW id                           -> OK status result wtime btime fen
+ *   MOVES id                          moves played so far, in UCI
+ *   LEGAL id                          legal moves, in UCI
+ *   RESIGN id                         the side to move resigns
+ *   END id                            remove a game
+ *   STATS                             -> OK games connections
+ *   QUIT                              close the connection
+ *
+ * Times are in milliseconds. Usage: java GameServer [port] [archive]
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class GameServer implements Runnable {
+    public static final int DEFAULT_PORT = 7878;
+    // Games are drawn once this many moves have been played
+    public static final int MAX_PLIES = 2048;
+
+    private static final int MAX_LINE = 4096;
+    // A client that stops reading is dropped once this much output is queued
+    private static final int MAX_OUTPUT = 1 << 20;
+    private static final long SWEEP_MILLIS = 100;
+
+    private static final String[] STATUS_NAMES = {
+        "playing", "checkmate", "stalemate", "fifty-moves", "repetition", "tablebase",
+        "time", "resigned", "adjudication", "move-limit"
+    };
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final GameArchive.Writer archive;
+    private final Map<Integer, Match> games = new HashMap<Integer, Match>();
+    private int nextId = 1;
+    private int connections;
+    private volatile boolean running = true;
+
+    // Shared by all games; only the server thread uses them
+    private final int[] moves = new int[MoveGenerator.MAX_MOVES];
+    private final StringBuilder reply = new StringBuilder();
+
+    /**
+     * A game hosted by the server.
+     */
+    private static class Match {
+        final int id;
+        final Connection owner;
+        final String startFen;
+        final Position position;
+        int[] history = new int[64];
+        int plies;
+        // Indexed by color; only the side to move's clock runs
+        final Clock[] clocks = new Clock[2];
+        final boolean timed;
+        int status = TurnState.PLAYING;
+        int result = GameArchive.UNKNOWN;
+
+        Match(int id, Connection owner, Position position, long millis, long increment, long delay) {
+            this.id = id;
+            this.owner = owner;
+            this.position = position;
+            this.startFen = position.toFen();
+            this.timed = millis > 0;
+            this.clocks[0] = new Clock(millis, increment, delay);
+            this.clocks[1] = new Clock(millis, increment, delay);
+            if (timed) clocks[position.getSideToMove()].start();
+        }
+
+        long remaining(int color, long now) {
+            return timed ? clocks[color].getRemaining(now) : 0;
+        }
+    }
+
+    /**
+     * A client, with its unfinished input line and unsent output.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+        ByteBuffer out;
+        final List<Match> games = new ArrayList<Match>();
+        boolean closing;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Opens the server socket on the loopback address.
+     *
+     * @param port Port to listen on, or 0 for any free port
+     * @param archive Where to append finished games, or null
+     * @throws IOException if the port cannot be opened
+     */
+    public GameServer(int port, GameArchive.Writer archive) throws IOException {
+        this.archive = archive;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Stops the server loop. Safe to call from any thread.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Serves connections until stopped.
+     */
+    public void run() {
+        long lastSweep = System.nanoTime();
+        try {
+            while (running) {
+                selector.select(SWEEP_MILLIS);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    if (key.isReadable()) read(key, c);
+                    if (key.isValid() && key.isWritable()) flush(key, c);
+                }
+
+                long now = System.nanoTime();
+                if (now - lastSweep >= SWEEP_MILLIS * 1000000) {
+                    sweep(now);
+                    lastSweep = now;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Game server stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+                if (archive != null) archive.flush();
+            } catch (IOException e) {
+                System.err.println("Game server: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        connections++;
+    }
+
+    private void read(SelectionKey key, Connection c) {
+        int n;
+        try {
+            n = c.channel.read(c.in);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            close(key, c);
+            return;
+        }
+
+        // Answer every complete line
+        ByteBuffer in = c.in;
+        int start = 0;
+        for (int i = 0; i < in.position(); i++) {
+            if (in.get(i) != '\n') continue;
+            int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+            String line = new String(in.array(), start, end - start, StandardCharsets.US_ASCII);
+            reply.setLength(0);
+            handle(c, line.trim());
+            send(c, reply);
+            start = i + 1;
+        }
+
+        if (start == 0 && !in.hasRemaining()) {
+            reply.setLength(0);
+            send(c, reply.append("ERR line too long"));
+            c.closing = true;
+        }
+        in.limit(in.position()).position(start);
+        in.compact();
+        flush(key, c);
+    }
+
+    private void send(Connection c, CharSequence text) {
+        byte[] bytes = (text + "\n").getBytes(StandardCharsets.US_ASCII);
+        if (c.out == null) {
+            c.out = ByteBuffer.wrap(bytes);
+            return;
+        }
+
+        ByteBuffer out = c.out;
+        if (out.remaining() + bytes.length > MAX_OUTPUT) {
+            c.closing = true;
+            return;
+        }
+        ByteBuffer joined = ByteBuffer.allocate(out.remaining() + bytes.length);
+        joined.put(out).put(bytes).flip();
+        c.out = joined;
+    }
+
+    private void flush(SelectionKey key, Connection c) {
+        try {
+            if (c.out != null) {
+                c.channel.write(c.out);
+                if (!c.out.hasRemaining()) c.out = null;
+            }
+        } catch (IOException e) {
+            close(key, c);
+            return;
+        }
+
+        if (c.out == null && c.closing) {
+            close(key, c);
+        } else if (key.isValid()) {
+            key.interestOps(c.out == null ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void close(SelectionKey key, Connection c) {
+        for (Match m : c.games) {
+            games.remove(m.id);
+        }
+        c.games.clear();
+        connections--;
+        closeQuietly(key);
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    /*
+     * Flags games whose side to move has run out of time, and writes the
+     * archive out.
+     */
+    private void sweep(long now) {
+        for (Match m : games.values()) {
+            if (m.timed && m.status == TurnState.PLAYING
+                    && m.remaining(m.position.getSideToMove(), now) == 0) {
+                flag(m);
+            }
+        }
+        if (archive != null) {
+            try {
+                archive.flush();
+            } catch (IOException e) {
+                System.err.println("Cannot write game archive: " + e.getMessage());
+            }
+        }
+    }
+
+    private void flag(Match m) {
+        int loser = m.position.getSideToMove();
+        finish(m, TurnState.TIME,
+                loser == Position.WHITE ? GameArchive.BLACK_WINS : GameArchive.WHITE_WINS);
+    }
+
+    private void handle(Connection c, String line) {
+        String[] words = line.split("\\s+", 3);
+        String command = words[0].toUpperCase();
+
+        try {
+            if (command.isEmpty()) {
+                reply.append("ERR empty command");
+            } else if (command.equals("NEW")) {
+                newGame(c, line.substring(3).trim());
+            } else if (command.equals("STATS")) {
+                reply.append("OK ").append(games.size()).append(' ').append(connections);
+            } else if (command.equals("QUIT")) {
+                reply.append("OK bye");
+                c.closing = true;
+            } else if (words.length < 2) {
+                reply.append("ERR usage: ").append(command).append(" id");
+            } else {
+                Match m = games.get(Integer.parseInt(words[1]));
+                if (m == null || m.owner != c) {
+                    reply.append("ERR no game ").append(words[1]);
+                    return;
+                }
+                if (m.timed && m.status == TurnState.PLAYING
+                        && m.remaining(m.position.getSideToMove(), System.nanoTime()) == 0) flag(m);
+
+                if (command.equals("MOVE")) {
+                    move(m, words.length > 2 ? words[2] : "");
+                } else if (command.equals("SHOW")) {
+                    show(m);
+                } else if (command.equals("MOVES")) {
+                    reply.append("OK");
+                    for (int i = 0; i < m.plies; i++) {
+                        reply.append(' ').append(Move.toString(m.history[i]));
+                    }
+                } else if (command.equals("LEGAL")) {
+                    reply.append("OK");
+                    if (m.status != TurnState.PLAYING) return;
+                    int n = MoveGenerator.generate(m.position, moves, 0);
+                    for (int i = 0; i < n; i++) {
+                        reply.append(' ').append(Move.toString(moves[i]));
+                    }
+                } else if (command.equals("RESIGN")) {
+                    if (m.status != TurnState.PLAYING) {
+                        reply.append("ERR game over");
+                        return;
+                    }
+                    finish(m, TurnState.RESIGNED, m.position.isWhiteToMove()
+                            ? GameArchive.BLACK_WINS : GameArchive.WHITE_WINS);
+                    show(m);
+                } else if (command.equals("END")) {
+                    games.remove(m.id);
+                    c.games.remove(m);
+                    reply.append("OK");
+                } else {
+                    reply.append("ERR unknown command ").append(words[0]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            reply.setLength(0);
+            reply.append("ERR ").append(e.getMessage());
+        }
+    }
+
+    private void newGame(Connection c, String args) {
+        long millis = 0;
+        long increment = 0;
+        long delay = 0;
+        String[] words = args.isEmpty() ? new String[0] : args.split("\\s+");
+        int i = 0;
+
+        // Optional time control, then an optional FEN
+        if (i < words.length && isNumber(words[i])) {
+            millis = (long) (Double.parseDouble(words[i++]) * 1000);
+            if (i < words.length && isNumber(words[i])) {
+                increment = (long) (Double.parseDouble(words[i++]) * 1000);
+                if (i < words.length && isNumber(words[i])) {
+                    delay = (long) (Double.parseDouble(words[i++]) * 1000);
+                }
+            }
+        }
+        StringBuilder fen = new StringBuilder();
+        for (; i < words.length; i++) {
+            fen.append(words[i]).append(' ');
+        }
+
+        Position p = fen.length() == 0 ? Position.startPosition() : Position.fromFen(fen);
+        p.validate();
+        Match m = new Match(nextId++, c, p, millis, increment, delay);
+        games.put(m.id, m);
+        c.games.add(m);
+        updateStatus(m);
+        reply.append("OK ").append(m.id);
+    }
+
+    private static boolean isNumber(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            char ch = word.charAt(i);
+            if ((ch < '0' || ch > '9') && ch != '.') return false;
+        }
+        return !word.isEmpty();
+    }
+
+    private void move(Match m, String text) {
+        if (m.status != TurnState.PLAYING) {
+            reply.append("ERR game over");
+            return;
+        }
+
+        long now = System.nanoTime();
+        int color = m.position.getSideToMove();
+        int move = parseMove(m.position, text);
+        if (move < 0) {
+            reply.append("ERR ").append(San.describe(move)).append(' ').append(text);
+            return;
+        }
+
+        if (m.timed) {
+            if (!m.clocks[color].moveMade(now)) {
+                flag(m);
+                reply.append("ERR out of time");
+                return;
+            }
+            m.clocks[color ^ 1].start(now);
+        }
+        m.position.makeMove(move);
+        if (m.plies == m.history.length) {
+            int[] longer = new int[2 * m.plies];
+            System.arraycopy(m.history, 0, longer, 0, m.plies);
+            m.history = longer;
+        }
+        m.history[m.plies++] = move;
+        updateStatus(m);
+
+        reply.append("OK ").append(Move.toString(move)).append(' ');
+        appendState(m, now);
+    }
+
+    /*
+     * Reads a move in UCI coordinates, or failing that in SAN.
+     */
+    private int parseMove(Position p, String text) {
+        int move = Move.parse(p, text, moves);
+        if (move != Move.NONE) return move;
+        return San.parse(p, text, 0, text.length(), moves);
+    }
+
+    /*
+     * Ends the game if the side to move is mated or it is drawn, or the
+     * tablebases know its result.
+     */
+    private void updateStatus(Match m) {
+        Position p = m.position;
+        boolean whiteMoved = !p.isWhiteToMove();
+        int moverWins = whiteMoved ? GameArchive.WHITE_WINS : GameArchive.BLACK_WINS;
+        int moverLoses = whiteMoved ? GameArchive.BLACK_WINS : GameArchive.WHITE_WINS;
+        int status = TurnState.status(p, MoveGenerator.generate(p, moves, 0));
+
+        if (status == TurnState.CHECKMATE) {
+            finish(m, TurnState.CHECKMATE, moverWins);
+        } else if (status != TurnState.PLAYING) {
+            finish(m, status, GameArchive.DRAW);
+        } else if (m.plies >= MAX_PLIES) {
+            finish(m, TurnState.MOVE_LIMIT, GameArchive.DRAW);
+        } else {
+            int score = CheckmateDetector.adjudicate(p);
+            if (score == 0) {
+                finish(m, TurnState.TABLEBASE, GameArchive.DRAW);
+            } else if (score != Tablebase.NOT_FOUND) {
+                // The score is for the side to move
+                finish(m, TurnState.TABLEBASE, score > 0 ? moverLoses : moverWins);
+            }
+        }
+    }
+
+    private void finish(Match m, int status, int result) {
+        long now = System.nanoTime();
+        m.clocks[0].stop(now);
+        m.clocks[1].stop(now);
+        m.status = status;
+        m.result = result;
+        if (archive == null) return;
+
+        try {
+            archive.append(m.startFen, m.history, m.plies, result);
+        } catch (IOException e) {
+            System.err.println("Cannot write game archive: " + e.getMessage());
+        }
+    }
+
+    private void show(Match m) {
+        reply.append("OK ");
+        appendState(m, System.nanoTime());
+        reply.append(' ');
+        m.position.appendFen(reply);
+    }
+
+    private void appendState(Match m, long now) {
+        reply.append(STATUS_NAMES[m.status]).append(' ')
+                .append(GameArchive.resultName(m.result)).append(' ')
+                .append(m.remaining(Position.WHITE, now)).append(' ')
+                .append(m.remaining(Position.BLACK, now));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        final GameArchive.Writer archive = args.length > 1
+                ? new GameArchive.Writer(Paths.get(args[1])) : null;
+        final GameServer server = new GameServer(port, archive);
+
+        // Write out the archive when the server is killed
+        final Thread loop = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                server.stop();
+                try {
+                    loop.join(5000);
+                    if (archive != null) archive.close();
+                } catch (InterruptedException e) {
+                    // Exiting anyway
+                } catch (IOException e) {
+                    System.err.println("Cannot write game archive: " + e.getMessage());
+                }
+            }
+        });
+
+        System.out.println("Game server listening on port " + server.getPort());
+        server.run();
+    }
+}
@@ -4,39 +4,86 @@ import java.awt.GridLayout;
 import java.awt.Image;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 
 
 public class GameWindow {
+    // How often the clocks on screen are refreshed; the time itself is kept
+    // by the clocks and does not depend on this
+    private static final int CLOCK_REFRESH_MILLIS = 100;
+    
     private JFrame gameWindow;
     
     public Clock blackClock;
     public Clock whiteClock;
     
     private Timer timer;
+    private JLabel blackTime;
+    private JLabel whiteTime;
+    private final char[] clockText = new char[Clock.FORMAT_LENGTH];
     
     private Board board;
     
+    // Settings of this game, to start the next one with
+    private final String blackName;
+    private final String whiteName;
+    private final int hh;
+    private final int mm;
+    private final int ss;
+    private final int increment;
+    private final int delay;
+    private final boolean blackEngine;
+    private final boolean whiteEngine;
+    
+    // Position analysis, kept between runs so the table stays warm
+    private TranspositionTable analysisTable;
+    private ParallelSearch analysis;
+    
+    // Book moves of the position on the board, shown when there is a book
+    private JLabel bookMoves;
+    
     
     
     public GameWindow(String blackName, String whiteName, int hh, 
             int mm, int ss) {
-        
-        blackClock = new Clock(hh, ss, mm);
-        whiteClock = new Clock(hh, ss, mm);
+        this(blackName, whiteName, hh, mm, ss, false, false);
+    }
+    
+    public GameWindow(String blackName, String whiteName, int hh, 
+            int mm, int ss, boolean blackEngine, boolean whiteEngine) {
+        this(blackName, whiteName, hh, mm, ss, 0, 0, blackEngine, whiteEngine);
+    }
+    
+    /**
+     * @param increment Seconds added to a player's clock after each move
+     * @param delay Seconds of each move given back to the player's clock
+     */
+    public GameWindow(String blackName, String whiteName, int hh, 
+            int mm, int ss, int increment, int delay,
+            boolean blackEngine, boolean whiteEngine) {
+        this.blackName = blackName;
+        this.whiteName = whiteName;
+        this.hh = hh;
+        this.mm = mm;
+        this.ss = ss;
+        this.increment = increment;
+        this.delay = delay;
+        this.blackEngine = blackEngine;
+        this.whiteEngine = whiteEngine;
+        
+        long millis = ((hh * 60L + mm) * 60 + ss) * 1000;
+        blackClock = new Clock(millis, increment * 1000L, delay * 1000L);
+        whiteClock = new Clock(millis, increment * 1000L, delay * 1000L);
         
         gameWindow = new JFrame("Chess");
         
 
-        try {
-            Image whiteImg = ImageIO.read(getClass().getResource("wp.png"));
-            gameWindow.setIconImage(whiteImg);
-        } catch (Exception e) {
-            System.out.println("Game file wp.png not found");
-        }
+        Image whiteImg = Sprites.get("wp.png");
+        if (whiteImg != null) gameWindow.setIconImage(whiteImg);
 
         gameWindow.setLocation(100, 100);
         
@@ -44,7 +91,7 @@ public class GameWindow {
         gameWindow.setLayout(new BorderLayout(20,20));
        
         // Game Data window
-        JPanel gameData = gameDataPanel(blackName, whiteName, hh, mm, ss);
+        JPanel gameData = gameDataPanel();
         gameData.setSize(gameData.getPreferredSize());
         gameWindow.add(gameData, BorderLayout.NORTH);
         
@@ -61,12 +108,27 @@ public class GameWindow {
         gameWindow.pack();
         gameWindow.setVisible(true);
         gameWindow.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        
+        // Stop any engine still thinking once the window goes away
+        gameWindow.addWindowListener(new WindowAdapter() {
+            public void windowClosed(WindowEvent e) {
+                board.stop();
+                if (analysis != null) analysis.stop();
+            }
+        });
+        
+        if (blackEngine) board.setEngine(0, new EnginePlayer(board));
+        if (whiteEngine) board.setEngine(1, new EnginePlayer(board));
+        
+        if (timer != null) {
+            (board.getTurn() ? whiteClock : blackClock).start();
+            timer.start();
+        }
     }
     
 // Helper function to create data panel
     
-    private JPanel gameDataPanel(final String bn, final String wn, 
-            final int hh, final int mm, final int ss) {
+    private JPanel gameDataPanel() {
         
         JPanel gameData = new JPanel();
         gameData.setLayout(new GridLayout(3,2,0,0));
@@ -74,8 +136,8 @@ public class GameWindow {
         
         // PLAYER NAMES
         
-        JLabel w = new JLabel(wn);
-        JLabel b = new JLabel(bn);
+        JLabel w = new JLabel(whiteName);
+        JLabel b = new JLabel(blackName);
         
         w.setHorizontalAlignment(JLabel.CENTER);
         w.setVerticalAlignment(JLabel.CENTER);
@@ -90,67 +152,43 @@ public class GameWindow {
         
         // CLOCKS
         
-        final JLabel bTime = new JLabel(blackClock.getTime());
-        final JLabel wTime = new JLabel(whiteClock.getTime());
+        blackTime = new JLabel(blackClock.getTime());
+        whiteTime = new JLabel(whiteClock.getTime());
         
-        bTime.setHorizontalAlignment(JLabel.CENTER);
-        bTime.setVerticalAlignment(JLabel.CENTER);
-        wTime.setHorizontalAlignment(JLabel.CENTER);
-        wTime.setVerticalAlignment(JLabel.CENTER);
+        blackTime.setHorizontalAlignment(JLabel.CENTER);
+        blackTime.setVerticalAlignment(JLabel.CENTER);
+        whiteTime.setHorizontalAlignment(JLabel.CENTER);
+        whiteTime.setVerticalAlignment(JLabel.CENTER);
         
         if (!(hh == 0 && mm == 0 && ss == 0)) {
-            timer = new Timer(1000, null);
-            timer.addActionListener(new ActionListener() {
+            // Only redraws the clocks; moves switch them in moveMade
+            timer = new Timer(CLOCK_REFRESH_MILLIS, new ActionListener() {
                 public void actionPerformed(ActionEvent e) {
-                    boolean turn = board.getTurn();
+                    long now = System.nanoTime();
+                    showClocks(now);
                     
-                    if (turn) {
-                        whiteClock.decr();
-                        wTime.setText(whiteClock.getTime());
-                        
-                        if (whiteClock.outOfTime()) {
-                            timer.stop();
-                            int n = JOptionPane.showConfirmDialog(
-                                    gameWindow,
-                                    bn + " wins by time! Play a new game? \n" +
-                                    "Choosing \"No\" quits the game.",
-                                    bn + " wins!",
-                                    JOptionPane.YES_NO_OPTION);
-                            
-                            if (n == JOptionPane.YES_OPTION) {
-                                new GameWindow(bn, wn, hh, mm, ss);
-                                gameWindow.dispose();
-                            } else gameWindow.dispose();
-                        }
-                    } else {
-                        blackClock.decr();
-                        bTime.setText(blackClock.getTime());
-                        
-                        if (blackClock.outOfTime()) {
-                            timer.stop();
-                            int n = JOptionPane.showConfirmDialog(
-                                    gameWindow,
-                                    wn + " wins by time! Play a new game? \n" +
-                                    "Choosing \"No\" quits the game.",
-                                    wn + " wins!",
-                                    JOptionPane.YES_NO_OPTION);
-                            
-                            if (n == JOptionPane.YES_OPTION) {
-                                new GameWindow(bn, wn, hh, mm, ss);
-                                gameWindow.dispose();
-                            } else gameWindow.dispose();
-                        }
-                    }
+                    if (whiteClock.outOfTime(now)) timeLoss(Position.WHITE);
+                    else if (blackClock.outOfTime(now)) timeLoss(Position.BLACK);
                 }
             });
-            timer.start();
         } else {
-            wTime.setText("Untimed game");
-            bTime.setText("Untimed game");
+            whiteTime.setText("Untimed game");
+            blackTime.setText("Untimed game");
         }
         
-        gameData.add(wTime);
-        gameData.add(bTime);
+        gameData.add(whiteTime);
+        gameData.add(blackTime);
+        
+        // BOOK MOVES
+        
+        if (OpeningBook.getDefault() != null) {
+            JLabel book = new JLabel("Book moves:");
+            bookMoves = new JLabel();
+            book.setHorizontalAlignment(JLabel.CENTER);
+            bookMoves.setHorizontalAlignment(JLabel.CENTER);
+            gameData.add(book);
+            gameData.add(bookMoves);
+        }
         
         gameData.setPreferredSize(gameData.getMinimumSize());
         
@@ -159,7 +197,7 @@ public class GameWindow {
     
     private JPanel buttons() {
         JPanel buttons = new JPanel();
-        buttons.setLayout(new GridLayout(1, 3, 10, 0));
+        buttons.setLayout(new GridLayout(1, 4, 10, 0));
         
         final JButton quit = new JButton("Quit");
         
@@ -202,13 +240,24 @@ public class GameWindow {
                         + "and dragging. The game will watch out for illegal\n"
                         + "moves. You can win either by your opponent running\n"
                         + "out of time or by checkmating your opponent.\n"
+                        + "\"Analyze\" lets the computer search the position\n"
+                        + "on the board and show the best line it finds.\n"
                         + "\nGood luck, hope you enjoy the game!",
                         "How to play",
                         JOptionPane.PLAIN_MESSAGE);
             }
           });
         
+        final JButton analyze = new JButton("Analyze");
+        
+        analyze.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                analyze(analyze);
+            }
+          });
+        
         buttons.add(instr);
+        buttons.add(analyze);
         buttons.add(nGame);
         buttons.add(quit);
         
@@ -217,6 +266,167 @@ public class GameWindow {
         return buttons;
     }
     
+    /*
+     * Asks for the number of threads and the time to use, then searches the
+     * position on the board in the background and shows the best line.
+     */
+    private void analyze(final JButton button) {
+        final JSpinner threads = new JSpinner(new SpinnerNumberModel(
+                Runtime.getRuntime().availableProcessors(), 1, 256, 1));
+        final JSpinner seconds = new JSpinner(new SpinnerNumberModel(10, 1, 600, 1));
+        
+        JPanel settings = new JPanel(new GridLayout(2, 2, 10, 5));
+        settings.add(new JLabel("Threads"));
+        settings.add(threads);
+        settings.add(new JLabel("Seconds"));
+        settings.add(seconds);
+        
+        int n = JOptionPane.showConfirmDialog(gameWindow, settings,
+                "Analyze position", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+        if (n != JOptionPane.OK_OPTION) return;
+        
+        if (analysisTable == null) {
+            analysisTable = new TranspositionTable(TranspositionTable.DEFAULT_MEGABYTES * 4);
+        }
+        
+        final Position root = new Position(board.getPosition());
+        final long millis = ((Integer) seconds.getValue()) * 1000L;
+        final ParallelSearch search = new ParallelSearch(root,
+                (Integer) threads.getValue(), analysisTable);
+        analysis = search;
+        button.setEnabled(false);
+        
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                final int move = search.search(Search.MAX_PLY, millis);
+                long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+                
+                final String report = move == Move.NONE ? "No legal moves."
+                        : "Best line: " + ParallelSearch.formatLine(search.getPrincipalVariation())
+                        + "\nScore: " + formatScore(search.getBestScore(), root.isWhiteToMove())
+                        + "\nDepth: " + search.getCompletedDepth()
+                        + "\nNodes: " + search.getNodes() + " in " + elapsed + " ms ("
+                        + search.getNodes() * 1000 / elapsed + " nodes/s)"
+                        + "\nThreads: " + search.getThreads();
+                
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        button.setEnabled(true);
+                        if (!gameWindow.isDisplayable()) return;
+                        JOptionPane.showMessageDialog(gameWindow, report,
+                                "Analysis", JOptionPane.PLAIN_MESSAGE);
+                    }
+                });
+            }
+        }, "Analysis");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /*
+     * Scores are shown from white's point of view, in pawns.
+     */
+    private static String formatScore(int score, boolean whiteToMove) {
+        if (!whiteToMove) score = -score;
+        if (Math.abs(score) >= Search.MATE - Search.MAX_PLY) {
+            int moves = (Search.MATE - Math.abs(score) + 1) / 2;
+            return (score > 0 ? "White" : "Black") + " mates in " + moves;
+        }
+        return String.format("%+.2f", score / 100.0);
+    }
+    
+    /**
+     * Called by the board as soon as a move is made, to stop the mover's
+     * clock and start the opponent's at the same instant.
+     * @param color Color of the player who moved
+     */
+    public void moveMade(int color) {
+        if (timer == null || !timer.isRunning()) return;
+        
+        long now = System.nanoTime();
+        Clock mover = color == Position.WHITE ? whiteClock : blackClock;
+        Clock opponent = color == Position.WHITE ? blackClock : whiteClock;
+        
+        if (!mover.moveMade(now)) {
+            timeLoss(color);
+            return;
+        }
+        opponent.start(now);
+        showClocks(now);
+    }
+    
+    /*
+     * Writes the clocks into a shared buffer and only gives a label new
+     * text when what it shows has changed.
+     */
+    private void showClocks(long now) {
+        showClock(whiteTime, whiteClock, now);
+        showClock(blackTime, blackClock, now);
+    }
+    
+    private void showClock(JLabel label, Clock clock, long now) {
+        int n = clock.format(clockText, 0, now);
+        String shown = label.getText();
+        
+        boolean same = shown.length() == n;
+        for (int i = 0; same && i < n; i++) {
+            same = shown.charAt(i) == clockText[i];
+        }
+        if (!same) label.setText(new String(clockText, 0, n));
+    }
+    
+    private void timeLoss(int loser) {
+        long now = System.nanoTime();
+        timer.stop();
+        whiteClock.stop(now);
+        blackClock.stop(now);
+        showClocks(now);
+        board.timeLoss(loser);
+        
+        String winner = loser == Position.WHITE ? blackName : whiteName;
+        int n = JOptionPane.showConfirmDialog(
+                gameWindow,
+                winner + " wins by time! Play a new game? \n" +
+                "Choosing \"No\" quits the game.",
+                winner + " wins!",
+                JOptionPane.YES_NO_OPTION);
+        
+        if (n == JOptionPane.YES_OPTION) {
+            new GameWindow(blackName, whiteName, hh, mm, ss, increment, delay,
+                    blackEngine, whiteEngine);
+        }
+        gameWindow.dispose();
+    }
+    
+    /**
+     * Called by the board when a new turn begins. Shows up to three of the
+     * book's moves for the position, with how often the book plays them.
+     */
+    public void turnStarted() {
+        if (bookMoves == null) return;
+        
+        Position p = new Position(board.getPosition());
+        int[] moves = new int[MoveGenerator.MAX_MOVES];
+        int[] weights = new int[MoveGenerator.MAX_MOVES];
+        int n = OpeningBook.getDefault().probe(p, moves, weights);
+        
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            total += weights[i];
+        }
+        
+        StringBuilder text = new StringBuilder();
+        int[] buffer = new int[MoveGenerator.MAX_MOVES];
+        for (int i = 0; i < Math.min(n, 3); i++) {
+            if (i > 0) text.append(", ");
+            text.append(San.toString(p, moves[i], buffer));
+            if (total > 0) text.append(' ').append(weights[i] * 100 / total).append('%');
+        }
+        bookMoves.setText(n == 0 ? "out of book" : text.toString());
+    }
+    
     public void checkmateOccurred (int c) {
         if (c == 0) {
             if (timer != null) timer.stop();
@@ -246,4 +456,41 @@ public class GameWindow {
             }
         }
     }
+    
+    /**
+     * Ends a game the endgame tablebases show is won.
+     * @param winner Color of the winning side
+     * @param plies Plies to mate with best play
+     */
+    public void tablebaseWin(int winner, int plies) {
+        if (timer != null) timer.stop();
+        String name = winner == Position.WHITE ? "White" : "Black";
+        int n = JOptionPane.showConfirmDialog(
+                gameWindow,
+                name + " wins: the endgame tablebase shows mate in "
+                + (plies + 1) / 2 + " moves. Set up a new game? \n" +
+                "Choosing \"No\" lets you look at the final situation.",
+                name + " wins!",
+                JOptionPane.YES_NO_OPTION);
+        
+        if (n == JOptionPane.YES_OPTION) {
+            SwingUtilities.invokeLater(new StartMenu());
+            gameWindow.dispose();
+        }
+    }
+    
+    public void drawOccurred(String reason) {
+        if (timer != null) timer.stop();
+        int n = JOptionPane.showConfirmDialog(
+                gameWindow,
+                "The game is drawn by " + reason + ". Set up a new game? \n" +
+                "Choosing \"No\" lets you look at the final situation.",
+                "Draw",
+                JOptionPane.YES_NO_OPTION);
+        
+        if (n == JOptionPane.YES_OPTION) {
+            SwingUtilities.invokeLater(new StartMenu());
+            gameWindow.dispose();
+        }
+    }
 }
@@ -1,8 +1,3 @@
-
-
-import java.util.LinkedList;
-import java.util.List;
-
 public class Knight extends Piece {
 
     public Knight(int color, Square initSq, String img_file) {
@@ -10,28 +5,15 @@ public class Knight extends Piece {
     }
 
     @Override
-    public List<Square> getLegalMoves(Board b) {
-        LinkedList<Square> legalMoves = new LinkedList<Square>();
-        Square[][] board = b.getSquareArray();
-        
-        int x = this.getPosition().getXNum();
-        int y = this.getPosition().getYNum();
-        
-        for (int i = 2; i > -3; i--) {
-            for (int k = 2; k > -3; k--) {
-                if(Math.abs(i) == 2 ^ Math.abs(k) == 2) {
-                    if (k != 0 && i != 0) {
-                        try {
-                            legalMoves.add(board[y + k][x + i]);
-                        } catch (ArrayIndexOutOfBoundsException e) {
-                            continue;
-                        }
-                    }
-                }
-            }
-        }
+    public int getType() {
+        return Position.KNIGHT;
+    }
+
+    @Override
+    public long getTargets(Position p) {
+        int sq = this.getPosition().getIndex();
         
-        return legalMoves;
+        return Attacks.knightAttacks(sq) & ~p.occupancy(this.getColor());
     }
 
 }
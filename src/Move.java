@@ -0,0 +1,158 @@
+
+/**
+ * Helpers for moves encoded as primitive ints.
+ *
+ * Bits 0-5 hold the origin square, bits 6-11 the destination square and
+ * bits 12-14 the promotion piece type (0 when the move is not a promotion).
+ * The low 16 bits therefore identify a move on their own. Bits 16 and up
+ * carry flags for special moves that Position needs when making and
+ * unmaking the move.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class Move {
+    public static final int NONE = 0;
+
+    public static final int DOUBLE_PUSH = 1 << 16;
+    public static final int EN_PASSANT = 1 << 17;
+    public static final int CASTLING = 1 << 18;
+
+    private static final String FILES = "abcdefgh";
+    private static final String PROMOTIONS = " nbrq";
+
+    private Move() {
+    }
+
+    public static int of(int from, int to) {
+        return from | (to << 6);
+    }
+
+    public static int of(int from, int to, int flags) {
+        return from | (to << 6) | flags;
+    }
+
+    public static int promotion(int from, int to, int type) {
+        return from | (to << 6) | (type << 12);
+    }
+
+    public static int from(int move) {
+        return move & 63;
+    }
+
+    public static int to(int move) {
+        return (move >>> 6) & 63;
+    }
+
+    /**
+     * @return Piece type promoted to, or 0 if the move is not a promotion.
+     */
+    public static int promotion(int move) {
+        return (move >>> 12) & 7;
+    }
+
+    public static boolean isDoublePush(int move) {
+        return (move & DOUBLE_PUSH) != 0;
+    }
+
+    public static boolean isEnPassant(int move) {
+        return (move & EN_PASSANT) != 0;
+    }
+
+    public static boolean isCastling(int move) {
+        return (move & CASTLING) != 0;
+    }
+
+    /**
+     * Builds the full move for a piece going from one square to another in
+     * a position, filling in the special move flags. Pawns reaching the last
+     * rank promote to a queen.
+     *
+     * @param p Position the move is made in
+     * @param from Origin square
+     * @param to Destination square
+     * @return The encoded move
+     */
+    public static int fromSquares(Position p, int from, int to) {
+        int type = Position.typeOf(p.pieceAt(from));
+
+        if (type == Position.PAWN) {
+            if (to == p.getEnPassantSquare()) return of(from, to, EN_PASSANT);
+            if (Math.abs(to - from) == 16) return of(from, to, DOUBLE_PUSH);
+            if ((to >>> 3) == 0 || (to >>> 3) == 7) return promotion(from, to, Position.QUEEN);
+        } else if (type == Position.KING && Math.abs(to - from) == 2) {
+            return of(from, to, CASTLING);
+        }
+
+        return of(from, to);
+    }
+
+    /**
+     * @return The low 16 bits of the move, which identify it without the
+     * special move flags.
+     */
+    public static int code(int move) {
+        return move & 0xFFFF;
+    }
+
+    /**
+     * Rebuilds a full move from its 16 bit code, filling in the special move
+     * flags from the position.
+     *
+     * @param p Position the move is made in
+     * @param code The move's code
+     * @return The encoded move
+     */
+    public static int fromCode(Position p, int code) {
+        if (promotion(code) != 0) return code;
+        return fromSquares(p, from(code), to(code));
+    }
+
+    /**
+     * Finds the legal move written in long algebraic notation, as UCI
+     * sends it, e.g. "e2e4" or "e7e8q".
+     *
+     * @param p Position the move is made in
+     * @param s The move
+     * @param moves Scratch array of at least MoveGenerator.MAX_MOVES entries
+     * @return The full move, or NONE if the text is not a legal move.
+     */
+    public static int parse(Position p, CharSequence s, int[] moves) {
+        int length = s.length();
+        if (length != 4 && length != 5) return NONE;
+
+        int from = parseSquare(s, 0);
+        int to = parseSquare(s, 2);
+        int promotion = length == 5 ? PROMOTIONS.indexOf(s.charAt(4)) : 0;
+        if (from < 0 || to < 0 || promotion <= 0 && length == 5) return NONE;
+
+        int n = MoveGenerator.generate(p, moves, 0);
+        for (int i = 0; i < n; i++) {
+            if (code(moves[i]) == (from | (to << 6) | (promotion << 12))) return moves[i];
+        }
+        return NONE;
+    }
+
+    private static int parseSquare(CharSequence s, int i) {
+        int file = s.charAt(i) - 'a';
+        int rank = s.charAt(i + 1) - '1';
+        if (file < 0 || file > 7 || rank < 0 || rank > 7) return -1;
+        return file | (rank << 3);
+    }
+
+    /**
+     * @return Name of a square in algebraic notation, e.g. "e4".
+     */
+    public static String squareName(int sq) {
+        return "" + FILES.charAt(sq & 7) + (char) ('1' + (sq >>> 3));
+    }
+
+    /**
+     * @return The move in long algebraic notation, e.g. "e2e4" or "e7e8q".
+     */
+    public static String toString(int move) {
+        String s = squareName(from(move)) + squareName(to(move));
+        if (promotion(move) != 0) s += PROMOTIONS.charAt(promotion(move));
+        return s;
+    }
+}
@@ -0,0 +1,237 @@
+
+/**
+ * Generates fully legal moves for a Position.
+ *
+ * The pieces giving check and the pieces pinned to their king are found once
+ * per call. Every piece's targets are then restricted to the check mask
+ * (capture the checker or block its ray) and, for pinned pieces, to the line
+ * of the pin, so no move has to be tried on the board to see whether it
+ * leaves the king attacked.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class MoveGenerator {
+    // Longest possible list of legal moves in any reachable position
+    public static final int MAX_MOVES = 256;
+
+    private static final long RANK_1 = 0xFFL;
+    private static final long RANK_8 = 0xFFL << 56;
+    private static final long PROMOTION_RANKS = RANK_1 | RANK_8;
+
+    private MoveGenerator() {
+    }
+
+    /**
+     * Generates the legal moves of the side to move.
+     *
+     * @param p Position to generate moves for
+     * @param moves Buffer receiving the moves
+     * @param start Index of the first free slot in the buffer
+     * @return Index one past the last move written
+     */
+    public static int generate(Position p, int[] moves, int start) {
+        return generate(p, p.getSideToMove(), moves, start);
+    }
+
+    /**
+     * Generates the legal moves of a color. En passant captures are only
+     * generated for the side to move.
+     *
+     * @param p Position to generate moves for
+     * @param us Color to move
+     * @param moves Buffer receiving the moves
+     * @param start Index of the first free slot in the buffer
+     * @return Index one past the last move written
+     */
+    public static int generate(Position p, int us, int[] moves, int start) {
+        int n = start;
+        int them = us ^ 1;
+        int king = p.kingSquare(us);
+        long own = p.occupancy(us);
+        long enemy = p.occupancy(them);
+        long occ = own | enemy;
+
+        if (king == Position.NO_SQUARE) return n;
+
+        // King moves, tested against attacks with the king lifted off the board
+        long kingTargets = Attacks.kingAttacks(king) & ~own;
+        long occNoKing = occ & ~(1L << king);
+        while (kingTargets != 0) {
+            int to = Long.numberOfTrailingZeros(kingTargets);
+            if (p.attackersTo(to, them, occNoKing) == 0) moves[n++] = Move.of(king, to);
+            kingTargets &= kingTargets - 1;
+        }
+
+        long checkers = p.attackersTo(king, them, occ);
+        if (Long.bitCount(checkers) > 1) return n;
+
+        long checkMask = ~0L;
+        if (checkers != 0) {
+            int checker = Long.numberOfTrailingZeros(checkers);
+            checkMask = checkers | Attacks.between(king, checker);
+        }
+
+        long pinned = pinnedPieces(p, us, king);
+
+        // Knights, bishops, rooks and queens
+        for (int type = Position.KNIGHT; type <= Position.QUEEN; type++) {
+            long pieces = p.pieces(us, type);
+            while (pieces != 0) {
+                int from = Long.numberOfTrailingZeros(pieces);
+                long targets = attacks(type, from, occ) & ~own & checkMask;
+                if ((pinned & (1L << from)) != 0) targets &= Attacks.line(king, from);
+
+                while (targets != 0) {
+                    moves[n++] = Move.of(from, Long.numberOfTrailingZeros(targets));
+                    targets &= targets - 1;
+                }
+                pieces &= pieces - 1;
+            }
+        }
+
+        n = generatePawnMoves(p, us, king, pinned, checkMask, moves, n);
+
+        if (checkers == 0) n = generateCastling(p, us, king, moves, n);
+
+        return n;
+    }
+
+    /**
+     * Finds the pieces of a color that are pinned to their king: the only
+     * piece between the king and an enemy slider on the same line.
+     *
+     * @param p Position to inspect
+     * @param us Color whose pinned pieces are wanted
+     * @param king Square of that color's king
+     * @return Bitboard of pinned pieces.
+     */
+    public static long pinnedPieces(Position p, int us, int king) {
+        int them = us ^ 1;
+        long own = p.occupancy(us);
+        long enemy = p.occupancy(them);
+        long pinned = 0;
+
+        long snipers = (Attacks.rookAttacks(king, enemy)
+                & (p.pieces(them, Position.ROOK) | p.pieces(them, Position.QUEEN)))
+                | (Attacks.bishopAttacks(king, enemy)
+                & (p.pieces(them, Position.BISHOP) | p.pieces(them, Position.QUEEN)));
+
+        while (snipers != 0) {
+            int sniper = Long.numberOfTrailingZeros(snipers);
+            long blockers = Attacks.between(king, sniper) & (own | enemy);
+            if (Long.bitCount(blockers) == 1 && (blockers & own) != 0) pinned |= blockers;
+            snipers &= snipers - 1;
+        }
+
+        return pinned;
+    }
+
+    private static int generatePawnMoves(Position p, int us, int king, long pinned,
+            long checkMask, int[] moves, int n) {
+        long pawns = p.pieces(us, Position.PAWN);
+        long occ = p.occupied();
+        long enemy = p.occupancy(us ^ 1);
+        int forward = (us == Position.WHITE) ? 8 : -8;
+        int startRank = (us == Position.WHITE) ? 1 : 6;
+
+        while (pawns != 0) {
+            int from = Long.numberOfTrailingZeros(pawns);
+            pawns &= pawns - 1;
+
+            long allowed = checkMask;
+            if ((pinned & (1L << from)) != 0) allowed &= Attacks.line(king, from);
+
+            int one = from + forward;
+            if (one >= 0 && one < 64 && (occ & (1L << one)) == 0) {
+                if ((allowed & (1L << one)) != 0) n = addPawnMove(from, one, 0, moves, n);
+
+                int two = one + forward;
+                if ((from >>> 3) == startRank && (occ & (1L << two)) == 0
+                        && (allowed & (1L << two)) != 0) {
+                    moves[n++] = Move.of(from, two, Move.DOUBLE_PUSH);
+                }
+            }
+
+            long captures = Attacks.pawnAttacks(us, from) & enemy & allowed;
+            while (captures != 0) {
+                n = addPawnMove(from, Long.numberOfTrailingZeros(captures), 0, moves, n);
+                captures &= captures - 1;
+            }
+
+            int ep = p.getEnPassantSquare();
+            if (ep != Position.NO_SQUARE && us == p.getSideToMove()
+                    && (Attacks.pawnAttacks(us, from) & (1L << ep)) != 0
+                    && isLegalEnPassant(p, us, king, from, ep)) {
+                moves[n++] = Move.of(from, ep, Move.EN_PASSANT);
+            }
+        }
+
+        return n;
+    }
+
+    private static int addPawnMove(int from, int to, int flags, int[] moves, int n) {
+        if ((PROMOTION_RANKS & (1L << to)) != 0) {
+            for (int type = Position.QUEEN; type >= Position.KNIGHT; type--) {
+                moves[n++] = Move.promotion(from, to, type);
+            }
+        } else {
+            moves[n++] = Move.of(from, to, flags);
+        }
+        return n;
+    }
+
+    /*
+     * En passant removes two pawns from the same rank at once, which the pin
+     * mask cannot describe, so it is checked against the resulting occupancy.
+     */
+    private static boolean isLegalEnPassant(Position p, int us, int king, int from, int ep) {
+        int them = us ^ 1;
+        int captured = ep + ((us == Position.WHITE) ? -8 : 8);
+        long occ = (p.occupied() & ~(1L << from) & ~(1L << captured)) | (1L << ep);
+
+        long rooks = p.pieces(them, Position.ROOK) | p.pieces(them, Position.QUEEN);
+        long bishops = p.pieces(them, Position.BISHOP) | p.pieces(them, Position.QUEEN);
+        long otherCheckers = (Attacks.knightAttacks(king) & p.pieces(them, Position.KNIGHT))
+                | (Attacks.pawnAttacks(us, king) & p.pieces(them, Position.PAWN) & ~(1L << captured));
+
+        return (Attacks.rookAttacks(king, occ) & rooks) == 0
+                && (Attacks.bishopAttacks(king, occ) & bishops) == 0
+                && otherCheckers == 0;
+    }
+
+    private static int generateCastling(Position p, int us, int king, int[] moves, int n) {
+        int rights = p.getCastlingRights();
+        int them = us ^ 1;
+        long occ = p.occupied();
+        int kingside = (us == Position.WHITE) ? Position.WHITE_KINGSIDE : Position.BLACK_KINGSIDE;
+        int queenside = (us == Position.WHITE) ? Position.WHITE_QUEENSIDE : Position.BLACK_QUEENSIDE;
+        int home = (us == Position.WHITE) ? 4 : 60;
+        long rooks = p.pieces(us, Position.ROOK);
+
+        if (king != home) return n;
+
+        if ((rights & kingside) != 0 && (rooks & (1L << (home + 3))) != 0
+                && (occ & (3L << (home + 1))) == 0
+                && !p.isAttacked(home + 1, them) && !p.isAttacked(home + 2, them)) {
+            moves[n++] = Move.of(home, home + 2, Move.CASTLING);
+        }
+
+        if ((rights & queenside) != 0 && (rooks & (1L << (home - 4))) != 0
+                && (occ & (7L << (home - 3))) == 0
+                && !p.isAttacked(home - 1, them) && !p.isAttacked(home - 2, them)) {
+            moves[n++] = Move.of(home, home - 2, Move.CASTLING);
+        }
+
+        return n;
+    }
+
+    private static long attacks(int type, int sq, long occ) {
+        switch (type) {
+            case Position.KNIGHT: return Attacks.knightAttacks(sq);
+            case Position.BISHOP: return Attacks.bishopAttacks(sq, occ);
+            case Position.ROOK: return Attacks.rookAttacks(sq, occ);
+            default: return Attacks.queenAttacks(sq, occ);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Opening book read through a memory map, so even very large books cost no
+ * heap and a lookup is a binary search over the mapped entries.
+ *
+ * The file has Polyglot's layout: 16 byte big endian entries sorted by key,
+ * each holding the position's hash (8 bytes), a move (2 bytes), a weight
+ * (2 bytes) and a learn field (4 bytes, here the number of games). Keys are
+ * this program's Zobrist hashes and moves are Move codes, so Polyglot books
+ * themselves cannot be read, but books are built from PGN with build.
+ *
+ * Usage: java OpeningBook book.bin [fen]
+ *        java OpeningBook build games.pgn book.bin [plies] [min games] [threads]
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class OpeningBook implements Closeable {
+    // Book used by the game when no other is given
+    public static final String DEFAULT_FILE = "book.bin";
+    public static final int DEFAULT_PLIES = 24;
+
+    private static final int ENTRY_SIZE = 16;
+    // Entries per mapped segment, 1 GB each
+    private static final int SEGMENT_SHIFT = 26;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private static OpeningBook defaultBook;
+    private static boolean defaultOpened;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    /**
+     * Opens a book for lookups.
+     *
+     * @param file Book to read
+     * @throws IOException if the file cannot be read
+     */
+    public OpeningBook(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            size = channel.size() / ENTRY_SIZE;
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long first = (long) i << SEGMENT_SHIFT;
+                long entries = Math.min(1L << SEGMENT_SHIFT, size - first);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        first * ENTRY_SIZE, entries * ENTRY_SIZE);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the default book once: the file named by the chess.book system
+     * property, or DEFAULT_FILE in the working directory.
+     *
+     * @return The book, or null if there is none.
+     */
+    public static synchronized OpeningBook getDefault() {
+        if (!defaultOpened) {
+            defaultOpened = true;
+            Path file = Paths.get(System.getProperty("chess.book", DEFAULT_FILE));
+            if (Files.isRegularFile(file)) {
+                try {
+                    defaultBook = new OpeningBook(file);
+                } catch (IOException e) {
+                    System.err.println("Cannot read opening book " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        return defaultBook;
+    }
+
+    /**
+     * @return Number of entries in the book.
+     */
+    public long size() {
+        return size;
+    }
+
+    private MappedByteBuffer segment(long i) {
+        return segments[(int) (i >>> SEGMENT_SHIFT)];
+    }
+
+    private int offset(long i) {
+        return (int) (i & SEGMENT_MASK) * ENTRY_SIZE;
+    }
+
+    private long keyAt(long i) {
+        return segment(i).getLong(offset(i));
+    }
+
+    /*
+     * Index of the first entry whose key is not below the given one.
+     */
+    private long lowerBound(long key) {
+        long lo = 0;
+        long hi = size;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(keyAt(mid), key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Looks up the book moves of a position, most heavily weighted first.
+     * Moves that are not legal in the position (from another position with
+     * the same hash) are left out.
+     *
+     * @param p The position
+     * @param moves Receives the moves
+     * @param weights Receives the weight of each move
+     * @return Number of moves found, at most moves.length
+     */
+    public int probe(Position p, int[] moves, int[] weights) {
+        long key = p.getHash();
+        int[] legal = new int[MoveGenerator.MAX_MOVES];
+        int legalCount = -1;
+        int n = 0;
+
+        for (long i = lowerBound(key); i < size && keyAt(i) == key && n < moves.length; i++) {
+            MappedByteBuffer b = segment(i);
+            int at = offset(i);
+            int move = Move.fromCode(p, b.getShort(at + 8) & 0xFFFF);
+
+            if (legalCount < 0) legalCount = MoveGenerator.generate(p, legal, 0);
+            for (int j = 0; j < legalCount; j++) {
+                if (legal[j] == move) {
+                    moves[n] = move;
+                    weights[n] = b.getShort(at + 10) & 0xFFFF;
+                    n++;
+                    break;
+                }
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * Picks a book move at random, in proportion to the weights.
+     *
+     * @param p The position
+     * @param random Source of randomness
+     * @return The move, or Move.NONE if the position is not in the book.
+     */
+    public int choose(Position p, Random random) {
+        int[] moves = new int[MoveGenerator.MAX_MOVES];
+        int[] weights = new int[MoveGenerator.MAX_MOVES];
+        int n = probe(p, moves, weights);
+
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            total += weights[i];
+        }
+        if (total == 0) return Move.NONE;
+
+        int pick = random.nextInt(total);
+        for (int i = 0; i < n; i++) {
+            pick -= weights[i];
+            if (pick < 0) return moves[i];
+        }
+        return Move.NONE;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Builds a book from the games of a PGN file. Each move earns its side
+     * two points for a win and one for a draw or unknown result; weights are
+     * the points, scaled per position to fit in 16 bits.
+     *
+     * @param pgn Games to read
+     * @param book File to write the book to
+     * @param plies Moves to take from the start of each game
+     * @param minGames Games a move must be played in to be kept
+     * @param threads Threads to read the games with
+     * @return Number of entries written
+     * @throws IOException if a file cannot be read or written
+     */
+    public static long build(Path pgn, Path book, int plies, int minGames, int threads)
+            throws IOException {
+        Counts counts = new Counts(plies);
+        PgnValidator reader = new PgnValidator(threads);
+        try {
+            PgnValidator.Report report = reader.validate(pgn, counts);
+            if (report.errors > 0) {
+                System.err.println(report.errors + " games with errors left out; "
+                        + "run PgnValidator for details");
+            }
+        } finally {
+            reader.shutdown();
+        }
+
+        // Entries as (key, points << 32 | games << 16 | code) pairs
+        long[] entries = counts.entries(minGames);
+        int n = entries.length / 2;
+        sort(entries, 0, n);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(book), 1 << 16))) {
+            for (int first = 0; first < n; ) {
+                int last = first;
+                while (last < n && entries[2 * last] == entries[2 * first]) last++;
+
+                // Sorted by points, so the first is the largest
+                long max = entries[2 * first + 1] >>> 32;
+                for (int i = first; i < last; i++) {
+                    long value = entries[2 * i + 1];
+                    long points = value >>> 32;
+                    long weight = max <= 0xFFFF ? points : Math.max(1, points * 0xFFFF / max);
+                    if (points == 0) weight = 0;
+
+                    out.writeLong(entries[2 * i]);
+                    out.writeShort((int) value & 0xFFFF);
+                    out.writeShort((int) weight);
+                    out.writeInt((int) (value >>> 16) & 0xFFFF);
+                }
+                first = last;
+            }
+        }
+
+        return n;
+    }
+
+    /*
+     * Sorts (key, value) pairs by key as unsigned, then by value from
+     * largest to smallest.
+     */
+    private static void sort(long[] d, int lo, int hi) {
+        while (hi - lo > 16) {
+            int mid = (lo + hi) >>> 1;
+            long pivotKey = d[2 * mid];
+            long pivotValue = d[2 * mid + 1];
+            int i = lo;
+            int j = hi - 1;
+
+            while (i <= j) {
+                while (compare(d, i, pivotKey, pivotValue) < 0) i++;
+                while (compare(d, j, pivotKey, pivotValue) > 0) j--;
+                if (i <= j) swap(d, i++, j--);
+            }
+
+            // Recurse into the smaller part, loop over the larger
+            if (j - lo < hi - i) {
+                sort(d, lo, j + 1);
+                lo = i;
+            } else {
+                sort(d, i, hi);
+                hi = j + 1;
+            }
+        }
+
+        for (int i = lo + 1; i < hi; i++) {
+            for (int j = i; j > lo && compare(d, j - 1, d[2 * j], d[2 * j + 1]) > 0; j--) {
+                swap(d, j, j - 1);
+            }
+        }
+    }
+
+    private static int compare(long[] d, int i, long key, long value) {
+        int c = Long.compareUnsigned(d[2 * i], key);
+        return c != 0 ? c : Long.compare(value, d[2 * i + 1]);
+    }
+
+    private static void swap(long[] d, int i, int j) {
+        long key = d[2 * i];
+        long value = d[2 * i + 1];
+        d[2 * i] = d[2 * j];
+        d[2 * i + 1] = d[2 * j + 1];
+        d[2 * j] = key;
+        d[2 * j + 1] = value;
+    }
+
+    /*
+     * Points and games for each position and move seen while building,
+     * in an open addressing table of primitives. Each replay task fills
+     * its own table, and the tables are merged as the tasks are joined.
+     */
+    private static class Counts implements PgnValidator.GameVisitor {
+        // Moves taken from the start of each game
+        private final int plies;
+        private long[] keys = new long[1 << 16];
+        // Games (at most 0xFFFF) in the high 16 bits, move code in the low
+        // 16 bits; 0 for an empty slot
+        private int[] meta = new int[1 << 16];
+        private int[] points = new int[1 << 16];
+        private int used;
+
+        Counts(int plies) {
+            this.plies = plies;
+        }
+
+        public void visit(long[] gameKeys, int[] moves, int count, int firstColor, int result) {
+            for (int i = 0; i < Math.min(count, plies); i++) {
+                int color = firstColor ^ (i & 1);
+                int earned = result == GameArchive.DRAW || result == GameArchive.UNKNOWN ? 1
+                        : (result == GameArchive.WHITE_WINS) == (color == Position.WHITE) ? 2 : 0;
+                add(gameKeys[i], Move.code(moves[i]), 1, earned);
+            }
+        }
+
+        public PgnValidator.GameVisitor newPart() {
+            return new Counts(plies);
+        }
+
+        public void merge(PgnValidator.GameVisitor part) {
+            Counts other = (Counts) part;
+            for (int i = 0; i < other.keys.length; i++) {
+                int m = other.meta[i];
+                if (m != 0) add(other.keys[i], m & 0xFFFF, m >>> 16, other.points[i]);
+            }
+        }
+
+        private void add(long key, int code, int games, int earned) {
+            if (2 * used >= keys.length) grow();
+            int slot = find(keys, meta, key, code);
+
+            if (meta[slot] == 0) {
+                keys[slot] = key;
+                meta[slot] = code;
+                used++;
+            }
+            int total = Math.min(0xFFFF, (meta[slot] >>> 16) + games);
+            meta[slot] = (total << 16) | (meta[slot] & 0xFFFF);
+            points[slot] = (int) Math.min(Integer.MAX_VALUE, (long) points[slot] + earned);
+        }
+
+        private static int find(long[] keys, int[] meta, long key, int code) {
+            int mask = keys.length - 1;
+            long h = (key + code) * 0x9E3779B97F4A7C15L;
+            int slot = (int) (h ^ (h >>> 32)) & mask;
+            while (meta[slot] != 0 && (keys[slot] != key || (meta[slot] & 0xFFFF) != code)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldMeta = meta;
+            int[] oldPoints = points;
+            keys = new long[2 * oldKeys.length];
+            meta = new int[keys.length];
+            points = new int[keys.length];
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldMeta[i] == 0) continue;
+                int slot = find(keys, meta, oldKeys[i], oldMeta[i] & 0xFFFF);
+                keys[slot] = oldKeys[i];
+                meta[slot] = oldMeta[i];
+                points[slot] = oldPoints[i];
+            }
+        }
+
+        long[] entries(int minGames) {
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (meta[i] != 0 && (meta[i] >>> 16) >= minGames) n++;
+            }
+
+            long[] entries = new long[2 * n];
+            int j = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (meta[i] == 0 || (meta[i] >>> 16) < minGames) continue;
+                entries[j++] = keys[i];
+                entries[j++] = ((long) points[i] << 32) | (meta[i] & 0xFFFFFFFFL);
+            }
+            return entries;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 3 && args[0].equals("build")) {
+            int plies = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_PLIES;
+            int minGames = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+            int threads = args.length > 5 ? Integer.parseInt(args[5])
+                    : Runtime.getRuntime().availableProcessors();
+
+            long start = System.nanoTime();
+            long entries = build(Paths.get(args[1]), Paths.get(args[2]), plies, minGames, threads);
+            System.out.println(entries + " entries written to " + args[2] + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+            return;
+        }
+
+        if (args.length == 0) {
+            System.err.println("Usage: java OpeningBook book.bin [fen]\n"
+                    + "       java OpeningBook build games.pgn book.bin [plies] [min games] [threads]");
+            System.exit(2);
+        }
+
+        try (OpeningBook book = new OpeningBook(Paths.get(args[0]))) {
+            Position p = Position.fromFen(args.length > 1 ? args[1] : Perft.START_FEN);
+            int[] moves = new int[MoveGenerator.MAX_MOVES];
+            int[] weights = new int[MoveGenerator.MAX_MOVES];
+            int[] buffer = new int[MoveGenerator.MAX_MOVES];
+
+            // Repeated so the time is not mostly warming up
+            int n = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                n = book.probe(p, moves, weights);
+            }
+            long nanos = (System.nanoTime() - start) / 100000;
+
+            int total = 0;
+            for (int i = 0; i < n; i++) {
+                total += weights[i];
+            }
+            for (int i = 0; i < n; i++) {
+                System.out.println(String.format("%-8s %5d %5.1f%%", San.toString(p, moves[i], buffer),
+                        weights[i], total == 0 ? 0 : 100.0 * weights[i] / total));
+            }
+            System.out.println(n + " moves of " + book.size() + " entries, looked up in "
+                    + nanos + " ns");
+        }
+    }
+}
@@ -0,0 +1,191 @@
+
+/**
+ * Lazy SMP search: several threads run the same iterative deepening search
+ * on their own copies of the root position and share one
+ * TranspositionTable. The threads only cooperate through the table, where
+ * each finds results the others have already stored. Helper threads start
+ * their iterations at staggered depths so they do not search in lockstep.
+ *
+ * The calling thread runs the main search, whose result and principal
+ * variation are reported. The helpers are stopped when it finishes.
+ *
+ * Usage: java ParallelSearch [max threads] [depth] [fen]
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class ParallelSearch {
+    private final Search[] searches;
+
+    /**
+     * @param root Position to search. It is copied for every thread and not
+     * changed.
+     * @param threads Number of search threads, including the calling thread
+     * @param table Transposition table shared by the threads
+     */
+    public ParallelSearch(Position root, int threads, TranspositionTable table) {
+        searches = new Search[Math.max(1, threads)];
+
+        for (int i = 0; i < searches.length; i++) {
+            searches[i] = new Search(new Position(root), table);
+            // Odd helpers run one iteration ahead of the main thread
+            searches[i].setStartDepth(1 + (i & 1));
+        }
+    }
+
+    /**
+     * Sets the listener informed of the main thread's iterations.
+     *
+     * @param listener The listener
+     */
+    public void setListener(Search.Listener listener) {
+        searches[0].setListener(listener);
+    }
+
+    /**
+     * Searches with all threads until the main thread reaches the depth or
+     * time limit, or stop is called.
+     *
+     * @param maxDepth Deepest iteration to run
+     * @param millis Time limit in milliseconds, or 0 for no limit
+     * @return Best move found by the main thread, or Move.NONE if there is
+     * no legal move.
+     */
+    public int search(final int maxDepth, final long millis) {
+        Thread[] helpers = new Thread[searches.length - 1];
+
+        for (int i = 0; i < helpers.length; i++) {
+            final Search helper = searches[i + 1];
+            helpers[i] = new Thread(new Runnable() {
+                public void run() {
+                    helper.search(maxDepth, millis);
+                }
+            }, "Search helper " + (i + 1));
+            helpers[i].setDaemon(true);
+            helpers[i].start();
+        }
+
+        // Helpers that have not started yet see the stop as soon as they do
+        int move = searches[0].search(maxDepth, millis);
+        stop();
+
+        for (Thread helper : helpers) {
+            try {
+                helper.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return move;
+    }
+
+    /**
+     * Stops a running search. Safe to call from any thread.
+     */
+    public void stop() {
+        for (Search s : searches) {
+            s.stop();
+        }
+    }
+
+    /**
+     * Clears a stop so the search can be run again. Must not be called
+     * while the search runs.
+     */
+    public void reset() {
+        for (Search s : searches) {
+            s.reset();
+        }
+    }
+
+    public int getThreads() {
+        return searches.length;
+    }
+
+    public int getBestScore() {
+        return searches[0].getBestScore();
+    }
+
+    public int getCompletedDepth() {
+        return searches[0].getCompletedDepth();
+    }
+
+    public int[] getPrincipalVariation() {
+        return searches[0].getPrincipalVariation();
+    }
+
+    /**
+     * @return Nodes searched by all threads together
+     */
+    public long getNodes() {
+        long nodes = 0;
+        for (Search s : searches) {
+            nodes += s.getNodes();
+        }
+        return nodes;
+    }
+
+    /**
+     * Formats a principal variation as a line of moves.
+     *
+     * @param pv Moves, ending with Move.NONE if shorter than the array
+     * @return The moves separated by spaces
+     */
+    public static String formatLine(int[] pv) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < pv.length && pv[i] != Move.NONE; i++) {
+            if (i > 0) line.append(' ');
+            line.append(Move.toString(pv[i]));
+        }
+        return line.toString();
+    }
+
+    /**
+     * Searches a position to a fixed depth with 1, 2, 4, ... threads up to
+     * a maximum, starting each run with an empty table, and prints the time
+     * to depth and its speedup against a single thread.
+     *
+     * @param root Position to search
+     * @param maxThreads Largest thread count to try
+     * @param depth Depth to search to
+     */
+    public static void speedupReport(Position root, int maxThreads, int depth) {
+        TranspositionTable table = new TranspositionTable(256);
+        long baseline = 0;
+
+        System.out.println(String.format("%8s %10s %14s %14s %9s  %s",
+                "threads", "ms", "nodes", "nodes/s", "speedup", "best line"));
+
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            table.clear();
+            ParallelSearch search = new ParallelSearch(root, threads, table);
+            long start = System.nanoTime();
+            search.search(depth, 0);
+            long nanos = System.nanoTime() - start;
+            if (threads == 1) baseline = nanos;
+
+            long nodes = search.getNodes();
+            System.out.println(String.format("%8d %10d %14d %14d %9.2f  %s",
+                    threads, nanos / 1000000, nodes, (long) (nodes * 1e9 / nanos),
+                    (double) baseline / nanos, formatLine(search.getPrincipalVariation())));
+
+            if (threads >= maxThreads) break;
+        }
+    }
+
+    public static void main(String[] args) {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 9;
+        String fen = Perft.START_FEN;
+        if (args.length > 2) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 2; i < args.length; i++) sb.append(args[i]).append(' ');
+            fen = sb.toString();
+        }
+
+        speedupReport(Position.fromFen(fen), maxThreads, depth);
+    }
+}
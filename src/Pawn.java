@@ -1,84 +1,31 @@
-
-
-import java.util.List;
-import java.util.LinkedList;
-
 public class Pawn extends Piece {
-    private boolean wasMoved;
-    
+
     public Pawn(int color, Square initSq, String img_file) {
         super(color, initSq, img_file);
     }
-    
+
     @Override
-    public boolean move(Square fin) {
-        boolean b = super.move(fin);
-        wasMoved = true;
-        return b;
+    public int getType() {
+        return Position.PAWN;
     }
-
+    
     @Override
-    public List<Square> getLegalMoves(Board b) {
-        LinkedList<Square> legalMoves = new LinkedList<Square>();
-        
-        Square[][] board = b.getSquareArray();
-        
-        int x = this.getPosition().getXNum();
-        int y = this.getPosition().getYNum();
+    public long getTargets(Position p) {
+        int sq = this.getPosition().getIndex();
         int c = this.getColor();
+        long empty = ~p.occupied();
+        long targets = Attacks.pawnAttacks(c, sq) & p.occupancy(c ^ 1);
         
-        if (c == 0) {
-            if (!wasMoved) {
-                if (!board[y+2][x].isOccupied()) {
-                    legalMoves.add(board[y+2][x]);
-                }
-            }
-            
-            if (y+1 < 8) {
-                if (!board[y+1][x].isOccupied()) {
-                    legalMoves.add(board[y+1][x]);
-                }
-            }
-            
-            if (x+1 < 8 && y+1 < 8) {
-                if (board[y+1][x+1].isOccupied()) {
-                    legalMoves.add(board[y+1][x+1]);
-                }
-            }
-                
-            if (x-1 >= 0 && y+1 < 8) {
-                if (board[y+1][x-1].isOccupied()) {
-                    legalMoves.add(board[y+1][x-1]);
-                }
-            }
-        }
-        
-        if (c == 1) {
-            if (!wasMoved) {
-                if (!board[y-2][x].isOccupied()) {
-                    legalMoves.add(board[y-2][x]);
-                }
-            }
-            
-            if (y-1 >= 0) {
-                if (!board[y-1][x].isOccupied()) {
-                    legalMoves.add(board[y-1][x]);
-                }
-            }
-            
-            if (x+1 < 8 && y-1 >= 0) {
-                if (board[y-1][x+1].isOccupied()) {
-                    legalMoves.add(board[y-1][x+1]);
-                }
-            }
-                
-            if (x-1 >= 0 && y-1 >= 0) {
-                if (board[y-1][x-1].isOccupied()) {
-                    legalMoves.add(board[y-1][x-1]);
-                }
-            }
+        if (c == Position.WHITE) {
+            long one = (1L << sq << 8) & empty;
+            targets |= one;
+            if ((sq >>> 3) == 1) targets |= (one << 8) & empty;
+        } else {
+            long one = (1L << sq >>> 8) & empty;
+            targets |= one;
+            if ((sq >>> 3) == 6) targets |= (one >>> 8) & empty;
         }
         
-        return legalMoves;
+        return targets;
     }
 }
@@ -0,0 +1,239 @@
+
+/**
+ * Headless perft runner for the rules engine. Counts the leaf nodes of the
+ * legal move tree to a fixed depth, which both checks move generation
+ * against published numbers and measures its throughput.
+ *
+ * Usage:
+ * <pre>
+ *   java Perft [depth] [fen]          count nodes from a position
+ *   java Perft divide depth [fen]     also list the count below each move
+ *   java Perft suite [max depth]      check the standard test positions,
+ *                                     their hashes and the repetition line
+ * </pre>
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class Perft {
+    public static final String START_FEN =
+            "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+    // Standard test positions and their known node counts by depth
+    private static final String[] SUITE_FENS = {
+        START_FEN,
+        "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+        "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+        "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+        "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+        "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10"
+    };
+
+    private static final long[][] SUITE_COUNTS = {
+        {20L, 400L, 8902L, 197281L, 4865609L, 119060324L},
+        {48L, 2039L, 97862L, 4085603L, 193690690L},
+        {14L, 191L, 2812L, 43238L, 674624L, 11030083L, 178633661L},
+        {6L, 264L, 9467L, 422333L, 15833292L, 706045033L},
+        {44L, 1486L, 62379L, 2103487L, 89941194L},
+        {46L, 2079L, 89890L, 3894594L, 164075551L}
+    };
+
+    // After these moves the position after 1.e4 has occurred three times,
+    // the first time just after a double push no black pawn can take
+    private static final String[] REPETITION_LINE = {
+        "e2e4", "g8f6", "g1f3", "f6g8", "f3g1", "g8f6", "g1f3", "f6g8", "f3g1"
+    };
+    private static final int REPETITION_COUNT = 2;
+
+    private static final int MAX_DEPTH = 64;
+    // Depth to which the incremental hash is checked in every suite position
+    private static final int HASH_DEPTH = 3;
+
+    private final Position position;
+    private final int[][] moves;
+
+    /**
+     * Constructs a perft counter working on a position. The position is
+     * changed during counting but restored before any method returns.
+     *
+     * @param position Root position
+     */
+    public Perft(Position position) {
+        this.position = position;
+        this.moves = new int[MAX_DEPTH][MoveGenerator.MAX_MOVES];
+    }
+
+    /**
+     * @param depth Number of plies to search
+     * @return Number of leaf nodes at the given depth
+     */
+    public long count(int depth) {
+        if (depth == 0) return 1;
+        return count(depth, 0);
+    }
+
+    /**
+     * Counts the nodes below each legal move of the root and prints them,
+     * one move per line.
+     *
+     * @param depth Number of plies to search
+     * @return Total number of leaf nodes
+     */
+    public long divide(int depth) {
+        int[] rootMoves = moves[0];
+        int n = MoveGenerator.generate(position, rootMoves, 0);
+        long total = 0;
+
+        for (int i = 0; i < n; i++) {
+            position.makeMove(rootMoves[i]);
+            long nodes = depth > 1 ? count(depth - 1, 1) : 1;
+            position.unmakeMove(rootMoves[i]);
+
+            System.out.println(Move.toString(rootMoves[i]) + ": " + nodes);
+            total += nodes;
+        }
+
+        return total;
+    }
+
+    private long count(int depth, int ply) {
+        int[] list = moves[ply];
+        int n = MoveGenerator.generate(position, list, 0);
+        if (depth == 1) return n;
+
+        long nodes = 0;
+        for (int i = 0; i < n; i++) {
+            position.makeMove(list[i]);
+            nodes += count(depth - 1, ply + 1);
+            position.unmakeMove(list[i]);
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Checks that the hash kept up to date by makeMove and unmakeMove equals
+     * the hash computed from scratch at every node of the tree.
+     *
+     * @param depth Number of plies to search
+     * @return Whether all hashes matched
+     */
+    public boolean checkHash(int depth) {
+        return checkHash(depth, 0);
+    }
+
+    private boolean checkHash(int depth, int ply) {
+        if (position.getHash() != position.computeHash()) {
+            System.out.println("  hash mismatch in " + position.toFen());
+            return false;
+        }
+        if (depth == 0) return true;
+
+        int[] list = moves[ply];
+        int n = MoveGenerator.generate(position, list, 0);
+        long before = position.getHash();
+        for (int i = 0; i < n; i++) {
+            position.makeMove(list[i]);
+            boolean ok = checkHash(depth - 1, ply + 1);
+            position.unmakeMove(list[i]);
+            if (!ok || position.getHash() != before) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Runs every suite position up to a maximum depth and compares the
+     * counts with the known values.
+     *
+     * @param maxDepth Deepest depth to check for each position
+     * @return Whether all counts matched
+     */
+    public static boolean runSuite(int maxDepth) {
+        boolean passed = true;
+        long totalNodes = 0;
+        long totalTime = 0;
+
+        for (int i = 0; i < SUITE_FENS.length; i++) {
+            System.out.println(SUITE_FENS[i]);
+
+            for (int d = 1; d <= Math.min(maxDepth, SUITE_COUNTS[i].length); d++) {
+                Perft perft = new Perft(Position.fromFen(SUITE_FENS[i]));
+                long start = System.nanoTime();
+                long nodes = perft.count(d);
+                long elapsed = System.nanoTime() - start;
+
+                boolean ok = nodes == SUITE_COUNTS[i][d - 1];
+                passed &= ok;
+                totalNodes += nodes;
+                totalTime += elapsed;
+
+                System.out.println("  depth " + d + ": " + nodes
+                        + (ok ? "" : " (expected " + SUITE_COUNTS[i][d - 1] + ")")
+                        + " " + (ok ? "ok" : "FAILED") + ", " + formatRate(nodes, elapsed));
+            }
+
+            boolean hashOk = new Perft(Position.fromFen(SUITE_FENS[i])).checkHash(HASH_DEPTH);
+            passed &= hashOk;
+            System.out.println("  hashes to depth " + HASH_DEPTH + ": " + (hashOk ? "ok" : "FAILED"));
+        }
+
+        System.out.println((passed ? "All counts matched. " : "Some counts did NOT match. ")
+                + totalNodes + " nodes, " + formatRate(totalNodes, totalTime));
+        return checkRepetitions() && passed;
+    }
+
+    /**
+     * Plays REPETITION_LINE and checks that the repetitions of the final
+     * position are all found.
+     *
+     * @return Whether the count matched
+     */
+    public static boolean checkRepetitions() {
+        Position p = Position.startPosition();
+        int[] list = new int[MoveGenerator.MAX_MOVES];
+        for (String s : REPETITION_LINE) {
+            int move = Move.parse(p, s, list);
+            if (move == Move.NONE) throw new IllegalStateException("Illegal move " + s);
+            p.makeMove(move);
+        }
+
+        int count = p.countRepetitions();
+        boolean ok = count == REPETITION_COUNT;
+        System.out.println("Repetitions after " + String.join(" ", REPETITION_LINE) + ": " + count
+                + (ok ? " ok" : " (expected " + REPETITION_COUNT + ") FAILED"));
+        return ok;
+    }
+
+    private static String formatRate(long nodes, long nanos) {
+        long ms = nanos / 1000000;
+        long nps = nanos == 0 ? 0 : (long) (nodes * 1e9 / nanos);
+        return ms + " ms, " + nps + " nodes/s";
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("suite")) {
+            int maxDepth = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+            if (!runSuite(maxDepth)) System.exit(1);
+            return;
+        }
+
+        boolean divide = args.length > 0 && args[0].equals("divide");
+        int first = divide ? 1 : 0;
+        int depth = args.length > first ? Integer.parseInt(args[first]) : 6;
+        String fen = START_FEN;
+        if (args.length > first + 1) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = first + 1; i < args.length; i++) sb.append(args[i]).append(' ');
+            fen = sb.toString();
+        }
+
+        Perft perft = new Perft(Position.fromFen(fen));
+        long start = System.nanoTime();
+        long nodes = divide ? perft.divide(depth) : perft.count(depth);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("Nodes: " + nodes);
+        System.out.println("Time: " + formatRate(nodes, elapsed));
+    }
+}
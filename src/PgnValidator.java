@@ -0,0 +1,509 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Headless tool that replays every game of a PGN file through the rules
+ * engine and reports moves that are malformed, illegal or ambiguous.
+ *
+ * The file is memory mapped a segment at a time. Each segment is split at
+ * game boundaries into ranges that a fork-join pool parses and replays in
+ * parallel, every worker reading the mapped bytes in place with its own
+ * Position. Comments, variations and annotations are skipped; games with a
+ * FEN tag start from that position.
+ *
+ * Usage: java PgnValidator file.pgn [threads]
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class PgnValidator {
+    // Largest part of the file mapped at once; games never span two segments
+    private static final long SEGMENT_SIZE = 1L << 30;
+    // Ranges smaller than this are replayed by one task
+    private static final int LEAF_SIZE = 1 << 20;
+    // Errors kept for the report; any more are only counted
+    private static final int MAX_REPORTED = 1000;
+
+    /**
+     * Totals for a range of the file, merged as tasks complete.
+     */
+    public static class Report {
+        public long games;
+        public long plies;
+        public long errors;
+        public final List<Problem> reported = new ArrayList<Problem>();
+        // Games seen in the range, merged along with the totals
+        private GameVisitor visitor;
+
+        void add(Report other) {
+            games += other.games;
+            plies += other.plies;
+            errors += other.errors;
+            for (Problem e : other.reported) {
+                if (reported.size() < MAX_REPORTED) reported.add(e);
+            }
+            if (visitor == null) visitor = other.visitor;
+            else if (other.visitor != null) visitor.merge(other.visitor);
+        }
+    }
+
+    /**
+     * A move that could not be replayed.
+     */
+    public static class Problem implements Comparable<Problem> {
+        public final long offset;
+        public final String message;
+
+        Problem(long offset, String message) {
+            this.offset = offset;
+            this.message = message;
+        }
+
+        public int compareTo(Problem other) {
+            return Long.compare(offset, other.offset);
+        }
+
+        @Override
+        public String toString() {
+            return "byte " + offset + ": " + message;
+        }
+    }
+
+    /**
+     * Receives every game that replays without errors, such as to build an
+     * opening book. Each task replays its range into its own part from
+     * newPart, so no visitor is used by two threads at once; the parts are
+     * merged in file order as the tasks are joined, ending in the visitor
+     * passed to validate. The arrays are reused for later games.
+     */
+    public interface GameVisitor {
+        /**
+         * @param keys Hash of the position before each move
+         * @param moves The moves of the game
+         * @param plies Number of moves
+         * @param firstColor Color of the side making the first move
+         * @param result GameArchive.WHITE_WINS, BLACK_WINS, DRAW or UNKNOWN
+         */
+        void visit(long[] keys, int[] moves, int plies, int firstColor, int result);
+
+        /**
+         * @return An empty visitor for the games of one task.
+         */
+        GameVisitor newPart();
+
+        /**
+         * Takes in the games seen by a part, which come after this
+         * visitor's games in the file.
+         */
+        void merge(GameVisitor part);
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param threads Number of worker threads
+     */
+    public PgnValidator(int threads) {
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Replays every game in a file.
+     *
+     * @param file PGN file to read
+     * @return Totals and the first errors found, in file order
+     * @throws IOException if the file cannot be read
+     */
+    public Report validate(Path file) throws IOException {
+        return validate(file, null);
+    }
+
+    /**
+     * Replays every game in a file, passing the games without errors to a
+     * visitor.
+     *
+     * @param file PGN file to read
+     * @param visitor Receives the games, or null
+     * @return Totals and the first errors found, in file order
+     * @throws IOException if the file cannot be read
+     */
+    public Report validate(Path file, GameVisitor visitor) throws IOException {
+        Report report = new Report();
+        report.visitor = visitor;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long offset = 0;
+
+            while (offset < size) {
+                long length = Math.min(SEGMENT_SIZE, size - offset);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                boolean last = offset + length == size;
+
+                // Cut the segment before the last game that may be unfinished
+                int end = (int) length;
+                if (!last) {
+                    end = lastGameStart(buffer, end);
+                    if (end <= 0) throw new IOException("Game too long at byte " + offset);
+                }
+
+                report.add(pool.invoke(new ReplayTask(buffer, offset, 0, end, visitor)));
+                offset += end;
+            }
+        }
+
+        Collections.sort(report.reported);
+        return report;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /*
+     * A game starts with a tag line that does not follow another tag line.
+     */
+    private static boolean isGameStart(MappedByteBuffer b, int i) {
+        if (b.get(i) != '[' || (i > 0 && b.get(i - 1) != '\n')) return false;
+        if (i == 0) return true;
+
+        // Start of the previous line, skipping a '\r' before the newline
+        int j = i - 1;
+        while (j > 0 && b.get(j - 1) != '\n') j--;
+        return b.get(j) != '[';
+    }
+
+    private static int nextGameStart(MappedByteBuffer b, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (b.get(i) == '[' && isGameStart(b, i)) return i;
+        }
+        return end;
+    }
+
+    private static int lastGameStart(MappedByteBuffer b, int end) {
+        for (int i = end - 1; i > 0; i--) {
+            if (b.get(i) == '[' && isGameStart(b, i)) return i;
+        }
+        return 0;
+    }
+
+    /*
+     * Replays the games in a range of a segment, splitting it in two at a
+     * game boundary while it is large.
+     */
+    @SuppressWarnings("serial")
+    private static class ReplayTask extends RecursiveTask<Report> {
+        private final MappedByteBuffer buffer;
+        private final long base;
+        private final int start;
+        private final int end;
+        private final GameVisitor visitor;
+
+        ReplayTask(MappedByteBuffer buffer, long base, int start, int end, GameVisitor visitor) {
+            this.buffer = buffer;
+            this.base = base;
+            this.start = start;
+            this.end = end;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected Report compute() {
+            if (end - start > LEAF_SIZE) {
+                int mid = nextGameStart(buffer, start + (end - start) / 2, end);
+                if (mid > start && mid < end) {
+                    ReplayTask left = new ReplayTask(buffer, base, start, mid, visitor);
+                    left.fork();
+                    Report right = new ReplayTask(buffer, base, mid, end, visitor).compute();
+                    // Left first, so the errors kept are the earliest ones
+                    Report report = left.join();
+                    report.add(right);
+                    return report;
+                }
+            }
+            GameVisitor part = visitor == null ? null : visitor.newPart();
+            Report report = new GameReader(buffer, base, part).read(start, end);
+            report.visitor = part;
+            return report;
+        }
+    }
+
+    /*
+     * Sequential PGN reader for one range, reusing its position, move
+     * buffer and text view for every game.
+     */
+    private static class GameReader {
+        private final MappedByteBuffer b;
+        private final long base;
+        private final AsciiSequence text;
+        private final Position position = new Position();
+        private final int[] moves = new int[MoveGenerator.MAX_MOVES];
+        private final Report report = new Report();
+        private final GameVisitor visitor;
+
+        // State of the game being read
+        private boolean inGame;
+        private boolean inMoves;
+        private boolean failed;
+        private int ply;
+        private int gameStart;
+        private int whiteStart, whiteEnd, blackStart, blackEnd;
+        private int firstColor;
+        private int result;
+        // Moves so far and the positions they were made in, for the visitor
+        private int[] gameMoves = new int[256];
+        private long[] gameKeys = new long[256];
+
+        GameReader(MappedByteBuffer b, long base, GameVisitor visitor) {
+            this.b = b;
+            this.base = base;
+            this.text = new AsciiSequence(b);
+            this.visitor = visitor;
+        }
+
+        Report read(int i, int end) {
+            while (i < end) {
+                int ch = b.get(i);
+
+                if (ch <= ' ') {
+                    i++;
+                } else if (ch == '[') {
+                    // Tags after moves belong to the next game
+                    if (inMoves) endGame();
+                    i = readTag(i, end);
+                } else if (ch == '{') {
+                    i = skipPast(i, end, '}');
+                } else if (ch == ';' || (ch == '%' && (i == 0 || b.get(i - 1) == '\n'))) {
+                    i = skipPast(i, end, '\n');
+                } else if (ch == '(') {
+                    i = skipVariation(i, end);
+                } else {
+                    int tokenEnd = i;
+                    while (tokenEnd < end && isTokenChar(b.get(tokenEnd))) tokenEnd++;
+                    if (tokenEnd == i) tokenEnd++;
+                    readToken(i, tokenEnd);
+                    i = tokenEnd;
+                }
+            }
+
+            if (inGame) endGame();
+            return report;
+        }
+
+        private void beginGame(int at) {
+            inGame = true;
+            inMoves = false;
+            failed = false;
+            ply = 0;
+            gameStart = at;
+            whiteStart = whiteEnd = blackStart = blackEnd = 0;
+            result = GameArchive.UNKNOWN;
+            position.setFen(Perft.START_FEN, 0, Perft.START_FEN.length());
+        }
+
+        private void endGame() {
+            if (visitor != null && !failed && ply > 0) {
+                visitor.visit(gameKeys, gameMoves, ply, firstColor, result);
+            }
+            report.games++;
+            inGame = false;
+            inMoves = false;
+        }
+
+        private int readTag(int i, int end) {
+            if (!inGame) beginGame(i);
+
+            int nameStart = i + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < end && b.get(nameEnd) > ' ' && b.get(nameEnd) != '"') nameEnd++;
+
+            int valueStart = nameEnd;
+            while (valueStart < end && b.get(valueStart) != '"' && b.get(valueStart) != '\n') {
+                valueStart++;
+            }
+            if (valueStart >= end || b.get(valueStart) != '"') return skipPast(i, end, '\n');
+            valueStart++;
+
+            int valueEnd = valueStart;
+            while (valueEnd < end && b.get(valueEnd) != '"' && b.get(valueEnd) != '\n') {
+                if (b.get(valueEnd) == '\\') valueEnd++;
+                valueEnd++;
+            }
+
+            int nameLength = nameEnd - nameStart;
+            if (nameLength == 5 && matches(nameStart, "White")) {
+                whiteStart = valueStart;
+                whiteEnd = valueEnd;
+            } else if (nameLength == 5 && matches(nameStart, "Black")) {
+                blackStart = valueStart;
+                blackEnd = valueEnd;
+            } else if (nameLength == 3 && matches(nameStart, "FEN")) {
+                try {
+                    position.setFen(text.setRange(valueStart, valueEnd), 0, valueEnd - valueStart);
+                } catch (IllegalArgumentException e) {
+                    error(valueStart, e.getMessage());
+                }
+            }
+
+            return skipPast(valueEnd, end, ']');
+        }
+
+        private void readToken(int start, int end) {
+            // Move numbers, possibly run together with the move: "12.", "12...e5"
+            int i = start;
+            while (i < end && b.get(i) >= '0' && b.get(i) <= '9') i++;
+            if (i < end && b.get(i) == '.') {
+                while (i < end && b.get(i) == '.') i++;
+                start = i;
+            } else {
+                i = start;
+            }
+            if (start == end) return;
+
+            int first = b.get(start);
+            if (first == '$' || first == '.') return;
+            if (isResult(start, end)) {
+                if (inGame) {
+                    result = resultOf(start, end);
+                    endGame();
+                }
+                return;
+            }
+
+            if (!inGame) beginGame(start);
+            inMoves = true;
+            if (failed) return;
+
+            int move = San.parse(position, text.setRange(start, end), 0, end - start, moves);
+            if (move < 0) {
+                error(start, "ply " + (ply + 1) + " \"" + string(start, end) + "\": "
+                        + San.describe(move));
+                return;
+            }
+
+            if (visitor != null) {
+                if (ply == 0) firstColor = position.getSideToMove();
+                if (ply == gameMoves.length) {
+                    gameMoves = Arrays.copyOf(gameMoves, 2 * ply);
+                    gameKeys = Arrays.copyOf(gameKeys, 2 * ply);
+                }
+                gameMoves[ply] = move;
+                gameKeys[ply] = position.getHash();
+            }
+
+            position.makeMove(move);
+            ply++;
+            report.plies++;
+        }
+
+        private void error(int at, String message) {
+            failed = true;
+            report.errors++;
+            if (report.reported.size() >= MAX_REPORTED) return;
+
+            String players = whiteEnd > whiteStart || blackEnd > blackStart
+                    ? " (" + string(whiteStart, whiteEnd) + " - " + string(blackStart, blackEnd) + ")"
+                    : "";
+            report.reported.add(new Problem(base + at, "game at byte " + (base + gameStart)
+                    + players + ", " + message));
+        }
+
+        // Tag values may hold UTF-8 names
+        private String string(int start, int end) {
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = b.get(start + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private boolean isResult(int start, int end) {
+            int length = end - start;
+            return (length == 1 && b.get(start) == '*')
+                    || (length == 3 && (matches(start, "1-0") || matches(start, "0-1")))
+                    || (length == 7 && matches(start, "1/2-1/2"));
+        }
+
+        private int resultOf(int start, int end) {
+            switch (end - start) {
+                case 3: return b.get(start) == '1' ? GameArchive.WHITE_WINS : GameArchive.BLACK_WINS;
+                case 7: return GameArchive.DRAW;
+                default: return GameArchive.UNKNOWN;
+            }
+        }
+
+        private boolean matches(int at, String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (b.get(at + i) != s.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private boolean isTokenChar(int ch) {
+            return ch > ' ' && ch != '{' && ch != '(' && ch != ')' && ch != ';' && ch != '[';
+        }
+
+        private int skipPast(int i, int end, char close) {
+            while (i < end && b.get(i) != close) i++;
+            return Math.min(i + 1, end);
+        }
+
+        private int skipVariation(int i, int end) {
+            int depth = 0;
+            for (; i < end; i++) {
+                int ch = b.get(i);
+                if (ch == '{') {
+                    i = skipPast(i, end, '}') - 1;
+                } else if (ch == '(') {
+                    depth++;
+                } else if (ch == ')' && --depth == 0) {
+                    return i + 1;
+                }
+            }
+            return end;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: java PgnValidator file.pgn [threads]");
+            return;
+        }
+
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        Path file = Paths.get(args[0]);
+        PgnValidator validator = new PgnValidator(threads);
+
+        long start = System.nanoTime();
+        Report report = validator.validate(file);
+        long nanos = System.nanoTime() - start;
+        validator.shutdown();
+
+        for (Problem e : report.reported) {
+            System.out.println(e);
+        }
+        if (report.errors > report.reported.size()) {
+            System.out.println("... " + (report.errors - report.reported.size()) + " more errors");
+        }
+
+        double seconds = nanos / 1e9;
+        System.out.println(String.format("%d games, %d plies, %d errors in %.2f s "
+                + "(%.0f games/s, %.1f MB/s, %d threads)",
+                report.games, report.plies, report.errors, seconds,
+                report.games / seconds, Files.size(file) / seconds / 1e6, threads));
+        if (report.errors > 0) System.exit(1);
+    }
+}
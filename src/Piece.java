@@ -3,12 +3,9 @@
 import java.awt.Graphics;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
-import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
-import javax.imageio.ImageIO;
-
 public abstract class Piece {
     private final int color;
     private Square currentSquare;
@@ -17,14 +14,7 @@ public abstract class Piece {
     public Piece(int color, Square initSq, String img_file) {
         this.color = color;
         this.currentSquare = initSq;
-        
-        try {
-            if (this.img == null) {
-              this.img = ImageIO.read(getClass().getResource(img_file));
-            }
-          } catch (IOException e) {
-            System.out.println("File not found: " + e.getMessage());
-          }
+        this.img = Sprites.get(img_file);
     }
     
     public boolean move(Square fin) {
@@ -64,124 +54,51 @@ public abstract class Piece {
         g.drawImage(this.img, x, y, null);
     }
     
-    public int[] getLinearOccupations(Square[][] board, int x, int y) {
-        int lastYabove = 0;
-        int lastXright = 7;
-        int lastYbelow = 7;
-        int lastXleft = 0;
+    /**
+     * Builds the list of squares this piece can move to. Kept for callers
+     * that work with squares; move generation itself goes through
+     * getTargets and generateMoves, which do not allocate.
+     * 
+     * @param b The board the piece is on
+     * @return Squares the piece can move to, ignoring checks
+     */
+    public List<Square> getLegalMoves(Board b) {
+        LinkedList<Square> targets = new LinkedList<Square>();
+        long bits = getTargets(b.getPosition());
         
-        for (int i = 0; i < y; i++) {
-            if (board[i][x].isOccupied()) {
-                if (board[i][x].getOccupyingPiece().getColor() != this.color) {
-                    lastYabove = i;
-                } else lastYabove = i + 1;
-            }
+        while (bits != 0) {
+            targets.add(b.getSquare(Long.numberOfTrailingZeros(bits)));
+            bits &= bits - 1;
         }
-
-        for (int i = 7; i > y; i--) {
-            if (board[i][x].isOccupied()) {
-                if (board[i][x].getOccupyingPiece().getColor() != this.color) {
-                    lastYbelow = i;
-                } else lastYbelow = i - 1;
-            }
-        }
-
-        for (int i = 0; i < x; i++) {
-            if (board[y][i].isOccupied()) {
-                if (board[y][i].getOccupyingPiece().getColor() != this.color) {
-                    lastXleft = i;
-                } else lastXleft = i + 1;
-            }
-        }
-
-        for (int i = 7; i > x; i--) {
-            if (board[y][i].isOccupied()) {
-                if (board[y][i].getOccupyingPiece().getColor() != this.color) {
-                    lastXright = i;
-                } else lastXright = i - 1;
-            }
-        }
-        
-        int[] occups = {lastYabove, lastYbelow, lastXleft, lastXright};
         
-        return occups;
+        return targets;
     }
     
-    public List<Square> getDiagonalOccupations(Square[][] board, int x, int y) {
-        LinkedList<Square> diagOccup = new LinkedList<Square>();
+    /**
+     * Writes this piece's moves, ignoring checks, into a move buffer as
+     * encoded ints.
+     * 
+     * @param p The position the piece is in
+     * @param moves Buffer receiving the moves
+     * @param n Index of the first free slot in the buffer
+     * @return Index one past the last move written
+     */
+    public int generateMoves(Position p, int[] moves, int n) {
+        int from = currentSquare.getIndex();
+        long bits = getTargets(p);
         
-        int xNW = x - 1;
-        int xSW = x - 1;
-        int xNE = x + 1;
-        int xSE = x + 1;
-        int yNW = y - 1;
-        int ySW = y + 1;
-        int yNE = y - 1;
-        int ySE = y + 1;
-        
-        while (xNW >= 0 && yNW >= 0) {
-            if (board[yNW][xNW].isOccupied()) {
-                if (board[yNW][xNW].getOccupyingPiece().getColor() == this.color) {
-                    break;
-                } else {
-                    diagOccup.add(board[yNW][xNW]);
-                    break;
-                }
-            } else {
-                diagOccup.add(board[yNW][xNW]);
-                yNW--;
-                xNW--;
-            }
-        }
-        
-        while (xSW >= 0 && ySW < 8) {
-            if (board[ySW][xSW].isOccupied()) {
-                if (board[ySW][xSW].getOccupyingPiece().getColor() == this.color) {
-                    break;
-                } else {
-                    diagOccup.add(board[ySW][xSW]);
-                    break;
-                }
-            } else {
-                diagOccup.add(board[ySW][xSW]);
-                ySW++;
-                xSW--;
-            }
-        }
-        
-        while (xSE < 8 && ySE < 8) {
-            if (board[ySE][xSE].isOccupied()) {
-                if (board[ySE][xSE].getOccupyingPiece().getColor() == this.color) {
-                    break;
-                } else {
-                    diagOccup.add(board[ySE][xSE]);
-                    break;
-                }
-            } else {
-                diagOccup.add(board[ySE][xSE]);
-                ySE++;
-                xSE++;
-            }
-        }
-        
-        while (xNE < 8 && yNE >= 0) {
-            if (board[yNE][xNE].isOccupied()) {
-                if (board[yNE][xNE].getOccupyingPiece().getColor() == this.color) {
-                    break;
-                } else {
-                    diagOccup.add(board[yNE][xNE]);
-                    break;
-                }
-            } else {
-                diagOccup.add(board[yNE][xNE]);
-                yNE--;
-                xNE++;
-            }
+        while (bits != 0) {
+            moves[n++] = Move.fromSquares(p, from, Long.numberOfTrailingZeros(bits));
+            bits &= bits - 1;
         }
         
-        return diagOccup;
+        return n;
     }
     
-    // No implementation, to be implemented by each subclass
-    public abstract List<Square> getLegalMoves(Board b);
-}
\ No newline at end of file
+    // Bitboard of squares this piece can move to, ignoring checks, to be
+    // implemented by each subclass
+    public abstract long getTargets(Position p);
+    
+    // Piece type constant from Position, to be implemented by each subclass
+    public abstract int getType();
+}
@@ -0,0 +1,765 @@
+
+/**
+ * Headless model of a chess position. Pieces are stored as one 64-bit
+ * bitboard per color and piece type, together with the side to move,
+ * castling rights and en passant square. Square 0 is a1 and square 63 is h8.
+ *
+ * The class holds no references to Swing components, so positions can be
+ * copied and evaluated on any thread. It is not thread safe; each thread
+ * should work on its own copy.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class Position {
+    // Colors, matching the convention used by Piece
+    public static final int BLACK = 0;
+    public static final int WHITE = 1;
+
+    // Piece types
+    public static final int PAWN = 0;
+    public static final int KNIGHT = 1;
+    public static final int BISHOP = 2;
+    public static final int ROOK = 3;
+    public static final int QUEEN = 4;
+    public static final int KING = 5;
+
+    public static final int EMPTY = -1;
+    public static final int NO_SQUARE = -1;
+
+    // Castling right flags
+    public static final int WHITE_KINGSIDE = 1;
+    public static final int WHITE_QUEENSIDE = 2;
+    public static final int BLACK_KINGSIDE = 4;
+    public static final int BLACK_QUEENSIDE = 8;
+    public static final int ALL_CASTLING = 15;
+
+    // King and rook squares needed by each castling right, by bit index
+    private static final int[] CASTLING_KING_SQUARES = {4, 4, 60, 60};
+    private static final int[] CASTLING_ROOK_SQUARES = {7, 0, 63, 56};
+    // First and last ranks, where no pawn can stand
+    private static final long BACK_RANKS = 0xFFL | (0xFFL << 56);
+
+    // Number of moves that can be taken back. The undo stack is a ring, so
+    // older entries are overwritten once a game grows longer than this.
+    public static final int UNDO_SIZE = 256;
+
+    // Zobrist keys, generated from a fixed seed so that hashes are stable
+    // between runs and can be stored
+    private static final long[][][] PIECE_KEYS = new long[2][6][64];
+    private static final long[] CASTLING_KEYS = new long[16];
+    private static final long[] EN_PASSANT_KEYS = new long[8];
+    private static final long SIDE_KEY;
+
+    // Piece letters in FEN, indexed by piece type
+    private static final String PIECE_CHARS = "PNBRQK";
+
+    static {
+        long seed = 0x2014C4E55L;
+        for (int c = 0; c < 2; c++) {
+            for (int t = 0; t < 6; t++) {
+                for (int sq = 0; sq < 64; sq++) {
+                    seed += 0x9E3779B97F4A7C15L;
+                    PIECE_KEYS[c][t][sq] = mix(seed);
+                }
+            }
+        }
+        for (int i = 0; i < 16; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            CASTLING_KEYS[i] = mix(seed);
+        }
+        CASTLING_KEYS[0] = 0;
+        for (int i = 0; i < 8; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            EN_PASSANT_KEYS[i] = mix(seed);
+        }
+        seed += 0x9E3779B97F4A7C15L;
+        SIDE_KEY = mix(seed);
+    }
+
+    private final long[][] pieces;
+    private final long[] occupancy;
+    private final int[] board;
+
+    private int sideToMove;
+    private int castlingRights;
+    // Only set when a pawn of the side to move could capture there, so a
+    // double push no enemy pawn can take leaves the position as it would be
+    // without one, as the repetition rules require
+    private int enPassant;
+    private int halfmoveClock;
+    private int fullmoveNumber;
+    private long hash;
+
+    // Undo stack of captured piece, castling rights, en passant square and
+    // halfmove clock, packed into one int per move, and the hash
+    private final int[] undoState;
+    private final long[] undoHash;
+    private int undoTop;
+
+    /**
+     * Constructs an empty position with white to move and no castling rights.
+     */
+    public Position() {
+        pieces = new long[2][6];
+        occupancy = new long[2];
+        board = new int[64];
+
+        for (int sq = 0; sq < 64; sq++) {
+            board[sq] = EMPTY;
+        }
+
+        sideToMove = WHITE;
+        castlingRights = 0;
+        enPassant = NO_SQUARE;
+        halfmoveClock = 0;
+        fullmoveNumber = 1;
+        hash = 0;
+
+        undoState = new int[UNDO_SIZE];
+        undoHash = new long[UNDO_SIZE];
+        undoTop = 0;
+    }
+
+    /**
+     * Constructs an independent copy of another position.
+     *
+     * @param other The position to copy
+     */
+    public Position(Position other) {
+        pieces = new long[2][6];
+        occupancy = new long[2];
+        board = other.board.clone();
+
+        for (int c = 0; c < 2; c++) {
+            System.arraycopy(other.pieces[c], 0, pieces[c], 0, 6);
+            occupancy[c] = other.occupancy[c];
+        }
+
+        sideToMove = other.sideToMove;
+        castlingRights = other.castlingRights;
+        enPassant = other.enPassant;
+        halfmoveClock = other.halfmoveClock;
+        fullmoveNumber = other.fullmoveNumber;
+        hash = other.hash;
+
+        undoState = other.undoState.clone();
+        undoHash = other.undoHash.clone();
+        undoTop = other.undoTop;
+    }
+
+    /**
+     * Creates the standard starting position.
+     *
+     * @return A new position with all pieces on their initial squares.
+     */
+    public static Position startPosition() {
+        Position p = new Position();
+        int[] backRank = {ROOK, KNIGHT, BISHOP, QUEEN, KING, BISHOP, KNIGHT, ROOK};
+
+        for (int x = 0; x < 8; x++) {
+            p.put(x, WHITE, backRank[x]);
+            p.put(8 + x, WHITE, PAWN);
+            p.put(48 + x, BLACK, PAWN);
+            p.put(56 + x, BLACK, backRank[x]);
+        }
+
+        p.setCastlingRights(ALL_CASTLING);
+        return p;
+    }
+
+    /**
+     * Creates a position from Forsyth-Edwards Notation. The move clocks may
+     * be left out.
+     *
+     * @param fen Position in FEN
+     * @return The position described
+     * @throws IllegalArgumentException if the FEN cannot be read
+     */
+    public static Position fromFen(CharSequence fen) {
+        Position p = new Position();
+        p.setFen(fen, 0, fen.length());
+        return p;
+    }
+
+    /**
+     * Replaces this position with one read from Forsyth-Edwards Notation,
+     * clearing its move history. The characters are read in place, so a
+     * FEN inside a larger buffer can be parsed without copying it out. The
+     * move clocks may be left out, and anything after them (such as EPD
+     * operations) is ignored.
+     *
+     * @param fen Characters holding the FEN
+     * @param start Index of the first character
+     * @param end Index one past the last character
+     * @throws IllegalArgumentException if the FEN cannot be read
+     */
+    public void setFen(CharSequence fen, int start, int end) {
+        clear();
+        int i = skipSpaces(fen, start, end);
+
+        // Piece placement, rank 8 first
+        int rank = 7;
+        int file = 0;
+        for (; i < end && !isSpace(fen.charAt(i)); i++) {
+            char ch = fen.charAt(i);
+            if (ch == '/') {
+                if (file != 8 || rank == 0) throw invalidFen(fen, start, end);
+                rank--;
+                file = 0;
+            } else if (ch >= '1' && ch <= '8') {
+                file += ch - '0';
+                if (file > 8) throw invalidFen(fen, start, end);
+            } else {
+                int type = pieceType(ch);
+                if (type < 0 || file > 7) throw invalidFen(fen, start, end);
+                put(rank * 8 + file, ch < 'a' ? WHITE : BLACK, type);
+                file++;
+            }
+        }
+        if (rank != 0 || file != 8) throw invalidFen(fen, start, end);
+
+        // Side to move
+        i = skipSpaces(fen, i, end);
+        if (i >= end) throw invalidFen(fen, start, end);
+        char side = fen.charAt(i++);
+        if (side == 'b') sideToMove = BLACK;
+        else if (side != 'w') throw invalidFen(fen, start, end);
+
+        // Castling rights
+        i = skipSpaces(fen, i, end);
+        if (i < end && fen.charAt(i) == '-') {
+            i++;
+        } else {
+            for (; i < end && !isSpace(fen.charAt(i)); i++) {
+                switch (fen.charAt(i)) {
+                    case 'K': castlingRights |= WHITE_KINGSIDE; break;
+                    case 'Q': castlingRights |= WHITE_QUEENSIDE; break;
+                    case 'k': castlingRights |= BLACK_KINGSIDE; break;
+                    case 'q': castlingRights |= BLACK_QUEENSIDE; break;
+                    default: throw invalidFen(fen, start, end);
+                }
+            }
+        }
+
+        // En passant square
+        i = skipSpaces(fen, i, end);
+        if (i < end && fen.charAt(i) == '-') {
+            i++;
+        } else {
+            if (i + 1 >= end) throw invalidFen(fen, start, end);
+            int epFile = fen.charAt(i) - 'a';
+            int epRank = fen.charAt(i + 1) - '1';
+            if (epFile < 0 || epFile > 7 || (epRank != 2 && epRank != 5)) {
+                throw invalidFen(fen, start, end);
+            }
+            int ep = epRank * 8 + epFile;
+            if (canCaptureEnPassant(ep, sideToMove)) enPassant = ep;
+            i += 2;
+        }
+
+        // Optional move clocks
+        i = skipSpaces(fen, i, end);
+        if (i < end && isDigit(fen.charAt(i))) {
+            int n = 0;
+            for (; i < end && isDigit(fen.charAt(i)); i++) n = n * 10 + fen.charAt(i) - '0';
+            halfmoveClock = n;
+
+            i = skipSpaces(fen, i, end);
+            if (i < end && isDigit(fen.charAt(i))) {
+                n = 0;
+                for (; i < end && isDigit(fen.charAt(i)); i++) n = n * 10 + fen.charAt(i) - '0';
+                fullmoveNumber = Math.max(1, n);
+            }
+        }
+
+        // put has already hashed the pieces
+        hash ^= CASTLING_KEYS[castlingRights] ^ enPassantKey(enPassant);
+        if (sideToMove == BLACK) hash ^= SIDE_KEY;
+    }
+
+    /**
+     * Checks that this position can be played from: one king of each
+     * color, no pawns on the first or last rank, castling rights only for a
+     * king and rook on their starting squares, and the side not to move not
+     * in check. setFen only checks the syntax, so positions from outside
+     * should be checked here too.
+     *
+     * @throws IllegalArgumentException naming the first problem found
+     */
+    public void validate() {
+        for (int color = BLACK; color <= WHITE; color++) {
+            if (Long.bitCount(pieces[color][KING]) != 1) {
+                throw new IllegalArgumentException(colorName(color) + " must have exactly one king");
+            }
+        }
+        if (((pieces[WHITE][PAWN] | pieces[BLACK][PAWN]) & BACK_RANKS) != 0) {
+            throw new IllegalArgumentException("Pawn on the first or last rank");
+        }
+        for (int i = 0; i < 4; i++) {
+            int color = i < 2 ? WHITE : BLACK;
+            if ((castlingRights & (1 << i)) != 0
+                    && (board[CASTLING_KING_SQUARES[i]] != makePiece(color, KING)
+                    || board[CASTLING_ROOK_SQUARES[i]] != makePiece(color, ROOK))) {
+                throw new IllegalArgumentException("Castling rights without the king and rook in place");
+            }
+        }
+        if (inCheck(sideToMove ^ 1)) {
+            throw new IllegalArgumentException(colorName(sideToMove ^ 1) + " is in check but not to move");
+        }
+    }
+
+    private static String colorName(int color) {
+        return color == WHITE ? "White" : "Black";
+    }
+
+    /**
+     * @return This position in Forsyth-Edwards Notation.
+     */
+    public String toFen() {
+        return appendFen(new StringBuilder(90)).toString();
+    }
+
+    /**
+     * Writes this position in Forsyth-Edwards Notation to a builder.
+     *
+     * @param sb Builder to append to
+     * @return The same builder
+     */
+    public StringBuilder appendFen(StringBuilder sb) {
+        for (int rank = 7; rank >= 0; rank--) {
+            int empty = 0;
+            for (int file = 0; file < 8; file++) {
+                int piece = board[rank * 8 + file];
+                if (piece == EMPTY) {
+                    empty++;
+                    continue;
+                }
+                if (empty > 0) sb.append((char) ('0' + empty));
+                empty = 0;
+                char ch = PIECE_CHARS.charAt(typeOf(piece));
+                sb.append(colorOf(piece) == WHITE ? ch : (char) (ch + ('a' - 'A')));
+            }
+            if (empty > 0) sb.append((char) ('0' + empty));
+            if (rank > 0) sb.append('/');
+        }
+
+        sb.append(sideToMove == WHITE ? " w " : " b ");
+
+        if (castlingRights == 0) sb.append('-');
+        if ((castlingRights & WHITE_KINGSIDE) != 0) sb.append('K');
+        if ((castlingRights & WHITE_QUEENSIDE) != 0) sb.append('Q');
+        if ((castlingRights & BLACK_KINGSIDE) != 0) sb.append('k');
+        if ((castlingRights & BLACK_QUEENSIDE) != 0) sb.append('q');
+
+        sb.append(' ');
+        if (enPassant == NO_SQUARE) {
+            sb.append('-');
+        } else {
+            sb.append((char) ('a' + (enPassant & 7))).append((char) ('1' + (enPassant >>> 3)));
+        }
+
+        return sb.append(' ').append(halfmoveClock).append(' ').append(fullmoveNumber);
+    }
+
+    /*
+     * Empties the board and resets all state, as a new Position.
+     */
+    private void clear() {
+        for (int c = 0; c < 2; c++) {
+            for (int t = 0; t < 6; t++) {
+                pieces[c][t] = 0;
+            }
+            occupancy[c] = 0;
+        }
+        for (int sq = 0; sq < 64; sq++) {
+            board[sq] = EMPTY;
+        }
+
+        sideToMove = WHITE;
+        castlingRights = 0;
+        enPassant = NO_SQUARE;
+        halfmoveClock = 0;
+        fullmoveNumber = 1;
+        hash = 0;
+        undoTop = 0;
+    }
+
+    private static int pieceType(char ch) {
+        switch (ch) {
+            case 'P': case 'p': return PAWN;
+            case 'N': case 'n': return KNIGHT;
+            case 'B': case 'b': return BISHOP;
+            case 'R': case 'r': return ROOK;
+            case 'Q': case 'q': return QUEEN;
+            case 'K': case 'k': return KING;
+            default: return -1;
+        }
+    }
+
+    private static boolean isSpace(char ch) {
+        return ch == ' ' || ch == '\t';
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    private static int skipSpaces(CharSequence s, int i, int end) {
+        while (i < end && isSpace(s.charAt(i))) i++;
+        return i;
+    }
+
+    private static IllegalArgumentException invalidFen(CharSequence fen, int start, int end) {
+        return new IllegalArgumentException("Invalid FEN: " + fen.subSequence(start, end));
+    }
+
+    /**
+     * Converts board coordinates as used by Square (column from the left,
+     * row from the top where black's pieces start) to a square index.
+     *
+     * @param x Column, 0 being the a-file
+     * @param y Row, 0 being the eighth rank
+     * @return Square index, 0 being a1
+     */
+    public static int square(int x, int y) {
+        return ((7 - y) << 3) | x;
+    }
+
+    /**
+     * @param sq Square index
+     * @return Column of the square as used by Square
+     */
+    public static int getX(int sq) {
+        return sq & 7;
+    }
+
+    /**
+     * @param sq Square index
+     * @return Row of the square as used by Square
+     */
+    public static int getY(int sq) {
+        return 7 - (sq >>> 3);
+    }
+
+    /**
+     * Combines a color and a piece type into a single piece code, as stored
+     * on the board and returned by pieceAt.
+     */
+    public static int makePiece(int color, int type) {
+        return (color << 3) | type;
+    }
+
+    public static int colorOf(int piece) {
+        return piece >>> 3;
+    }
+
+    public static int typeOf(int piece) {
+        return piece & 7;
+    }
+
+    /**
+     * @param sq Square index
+     * @return Piece code on the square or EMPTY
+     */
+    public int pieceAt(int sq) {
+        return board[sq];
+    }
+
+    /**
+     * @return Bitboard of pieces of the given color and type
+     */
+    public long pieces(int color, int type) {
+        return pieces[color][type];
+    }
+
+    /**
+     * @return Bitboard of all pieces of the given color
+     */
+    public long occupancy(int color) {
+        return occupancy[color];
+    }
+
+    /**
+     * @return Bitboard of all occupied squares
+     */
+    public long occupied() {
+        return occupancy[WHITE] | occupancy[BLACK];
+    }
+
+    /**
+     * @return Square of the king of the given color, or NO_SQUARE if the
+     * color has no king on the board.
+     */
+    public int kingSquare(int color) {
+        long k = pieces[color][KING];
+        return k == 0 ? NO_SQUARE : Long.numberOfTrailingZeros(k);
+    }
+
+    public int getSideToMove() {
+        return sideToMove;
+    }
+
+    public boolean isWhiteToMove() {
+        return sideToMove == WHITE;
+    }
+
+    public void setSideToMove(int color) {
+        if (color != sideToMove) hash ^= SIDE_KEY;
+        this.sideToMove = color;
+    }
+
+    public int getCastlingRights() {
+        return castlingRights;
+    }
+
+    public void setCastlingRights(int rights) {
+        hash ^= CASTLING_KEYS[castlingRights] ^ CASTLING_KEYS[rights];
+        this.castlingRights = rights;
+    }
+
+    public int getEnPassantSquare() {
+        return enPassant;
+    }
+
+    public void setEnPassantSquare(int sq) {
+        hash ^= enPassantKey(enPassant) ^ enPassantKey(sq);
+        this.enPassant = sq;
+    }
+
+    public int getHalfmoveClock() {
+        return halfmoveClock;
+    }
+
+    public int getFullmoveNumber() {
+        return fullmoveNumber;
+    }
+
+    /**
+     * @return 64-bit Zobrist hash of the position, covering piece placement,
+     * side to move, castling rights and the en passant square. It is kept
+     * up to date by every change made to the position.
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Computes the Zobrist hash from scratch. Normally equal to getHash.
+     *
+     * @return The hash of the current state
+     */
+    public long computeHash() {
+        long h = CASTLING_KEYS[castlingRights] ^ enPassantKey(enPassant);
+        if (sideToMove == BLACK) h ^= SIDE_KEY;
+
+        for (int sq = 0; sq < 64; sq++) {
+            int piece = board[sq];
+            if (piece != EMPTY) h ^= PIECE_KEYS[colorOf(piece)][typeOf(piece)][sq];
+        }
+
+        return h;
+    }
+
+    /**
+     * Places a piece on a square, replacing any piece already there.
+     *
+     * @param sq Square index
+     * @param color Color of the piece
+     * @param type Type of the piece
+     */
+    public void put(int sq, int color, int type) {
+        if (board[sq] != EMPTY) remove(sq);
+
+        long bit = 1L << sq;
+        pieces[color][type] |= bit;
+        occupancy[color] |= bit;
+        board[sq] = makePiece(color, type);
+        hash ^= PIECE_KEYS[color][type][sq];
+    }
+
+    /**
+     * Removes the piece on a square.
+     *
+     * @param sq Square index
+     * @return Piece code that was removed, or EMPTY
+     */
+    public int remove(int sq) {
+        int piece = board[sq];
+        if (piece == EMPTY) return EMPTY;
+
+        long bit = 1L << sq;
+        pieces[colorOf(piece)][typeOf(piece)] &= ~bit;
+        occupancy[colorOf(piece)] &= ~bit;
+        board[sq] = EMPTY;
+        hash ^= PIECE_KEYS[colorOf(piece)][typeOf(piece)][sq];
+        return piece;
+    }
+
+    /**
+     * Makes a move, pushing what is needed to take it back onto the undo
+     * stack. The move is assumed to be at least pseudo-legal.
+     *
+     * @param move Move encoded as described in Move
+     */
+    public void makeMove(int move) {
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int piece = board[from];
+        int color = colorOf(piece);
+        int type = typeOf(piece);
+        int capSq = Move.isEnPassant(move) ? to + (color == WHITE ? -8 : 8) : to;
+        int captured = board[capSq];
+
+        undoHash[undoTop & (UNDO_SIZE - 1)] = hash;
+        undoState[undoTop++ & (UNDO_SIZE - 1)] = (captured + 1)
+                | (castlingRights << 4) | ((enPassant + 1) << 8) | (halfmoveClock << 16);
+
+        if (captured != EMPTY) remove(capSq);
+
+        remove(from);
+        int promotion = Move.promotion(move);
+        put(to, color, promotion != 0 ? promotion : type);
+
+        if (Move.isCastling(move)) {
+            if (to > from) put(from + 1, color, ROOK);
+            else put(from - 1, color, ROOK);
+            remove(to > from ? from + 3 : from - 4);
+        }
+
+        setCastlingRights(castlingRights & castlingMask(from) & castlingMask(to));
+        int ep = Move.isDoublePush(move) ? (from + to) >>> 1 : NO_SQUARE;
+        setEnPassantSquare(ep != NO_SQUARE && canCaptureEnPassant(ep, color ^ 1) ? ep : NO_SQUARE);
+
+        if (captured != EMPTY || type == PAWN) {
+            halfmoveClock = 0;
+        } else halfmoveClock++;
+
+        if (color == BLACK) fullmoveNumber++;
+        sideToMove = color ^ 1;
+        hash ^= SIDE_KEY;
+    }
+
+    /**
+     * Takes back a move made with makeMove, restoring the state popped from
+     * the undo stack.
+     *
+     * @param move The move most recently made on this position
+     */
+    public void unmakeMove(int move) {
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int color = sideToMove ^ 1;
+        int state = undoState[--undoTop & (UNDO_SIZE - 1)];
+        long savedHash = undoHash[undoTop & (UNDO_SIZE - 1)];
+        int captured = (state & 15) - 1;
+
+        int type = Move.promotion(move) != 0 ? PAWN : typeOf(board[to]);
+        remove(to);
+        put(from, color, type);
+
+        if (Move.isCastling(move)) {
+            remove(to > from ? from + 1 : from - 1);
+            put(to > from ? from + 3 : from - 4, color, ROOK);
+        }
+
+        if (captured != EMPTY) {
+            int capSq = Move.isEnPassant(move) ? to + (color == WHITE ? -8 : 8) : to;
+            put(capSq, colorOf(captured), typeOf(captured));
+        }
+
+        castlingRights = (state >>> 4) & 15;
+        enPassant = ((state >>> 8) & 255) - 1;
+        halfmoveClock = state >>> 16;
+
+        if (color == BLACK) fullmoveNumber--;
+        sideToMove = color;
+        hash = savedHash;
+    }
+
+    /**
+     * Counts earlier occurrences of the current position among the moves
+     * still on the undo stack, back to the last capture or pawn move.
+     *
+     * @return Number of times the position occurred before
+     */
+    public int countRepetitions() {
+        int limit = Math.min(halfmoveClock, Math.min(undoTop, UNDO_SIZE));
+        int count = 0;
+
+        for (int i = 4; i <= limit; i += 2) {
+            if (undoHash[(undoTop - i) & (UNDO_SIZE - 1)] == hash) count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * @param sq Square index
+     * @param color Attacking color
+     * @return Whether any piece of the color attacks sq.
+     */
+    public boolean isAttacked(int sq, int color) {
+        return attackersTo(sq, color, occupied()) != 0;
+    }
+
+    /**
+     * @param sq Square index
+     * @param color Attacking color
+     * @param occ Occupancy to use for sliding attacks
+     * @return Squares of the pieces of the color that attack sq.
+     */
+    public long attackersTo(int sq, int color, long occ) {
+        long[] p = pieces[color];
+
+        return (Attacks.pawnAttacks(color ^ 1, sq) & p[PAWN])
+                | (Attacks.knightAttacks(sq) & p[KNIGHT])
+                | (Attacks.kingAttacks(sq) & p[KING])
+                | (Attacks.bishopAttacks(sq, occ) & (p[BISHOP] | p[QUEEN]))
+                | (Attacks.rookAttacks(sq, occ) & (p[ROOK] | p[QUEEN]));
+    }
+
+    /**
+     * @return Whether the king of the given color is attacked.
+     */
+    public boolean inCheck(int color) {
+        int k = kingSquare(color);
+        return k != NO_SQUARE && isAttacked(k, color ^ 1);
+    }
+
+    /*
+     * Whether a pawn of the given color attacks sq, and so could capture
+     * en passant there.
+     */
+    private boolean canCaptureEnPassant(int sq, int color) {
+        return (Attacks.pawnAttacks(color ^ 1, sq) & pieces[color][PAWN]) != 0;
+    }
+
+    private static long enPassantKey(int sq) {
+        return sq == NO_SQUARE ? 0 : EN_PASSANT_KEYS[sq & 7];
+    }
+
+    /*
+     * SplitMix64 finaliser used to derive the Zobrist keys.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /*
+     * Castling rights kept when a piece moves from or to the given square.
+     */
+    static int castlingMask(int sq) {
+        switch (sq) {
+            case 0: return ALL_CASTLING & ~WHITE_QUEENSIDE;
+            case 4: return ALL_CASTLING & ~(WHITE_KINGSIDE | WHITE_QUEENSIDE);
+            case 7: return ALL_CASTLING & ~WHITE_KINGSIDE;
+            case 56: return ALL_CASTLING & ~BLACK_QUEENSIDE;
+            case 60: return ALL_CASTLING & ~(BLACK_KINGSIDE | BLACK_QUEENSIDE);
+            case 63: return ALL_CASTLING & ~BLACK_KINGSIDE;
+            default: return ALL_CASTLING;
+        }
+    }
+}
@@ -1,8 +1,3 @@
-
-
-import java.util.LinkedList;
-import java.util.List;
-
 public class Rook extends Piece {
 
     public Rook(int color, Square initSq, String img_file) {
@@ -10,24 +5,14 @@ public class Rook extends Piece {
     }
 
     @Override
-    public List<Square> getLegalMoves(Board b) {
-        LinkedList<Square> legalMoves = new LinkedList<Square>();
-        Square[][] board = b.getSquareArray();
-        
-        int x = this.getPosition().getXNum();
-        int y = this.getPosition().getYNum();
-        
-        int[] occups = getLinearOccupations(board, x, y);
-        
-        for (int i = occups[0]; i <= occups[1]; i++) {
-            if (i != y) legalMoves.add(board[i][x]);
-        }
-        
-        for (int i = occups[2]; i <= occups[3]; i++) {
-            if (i != x) legalMoves.add(board[y][i]);
-        }
-        
-        return legalMoves;
+    public int getType() {
+        return Position.ROOK;
     }
 
+    @Override
+    public long getTargets(Position p) {
+        int sq = this.getPosition().getIndex();
+        
+        return Attacks.rookAttacks(sq, p.occupied()) & ~p.occupancy(this.getColor());
+    }
 }
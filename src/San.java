@@ -0,0 +1,186 @@
+
+/**
+ * Reads and writes moves in Standard Algebraic Notation, as used in PGN.
+ *
+ * Moves are matched against the legal moves of the position, so a move that
+ * does not name exactly one legal move is reported as illegal or ambiguous
+ * rather than guessed. Reading works on a range of any CharSequence without
+ * creating Strings.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class San {
+    // Results of parse that are not moves. Moves are never negative.
+    public static final int MALFORMED = -1;
+    public static final int ILLEGAL = -2;
+    public static final int AMBIGUOUS = -3;
+
+    private static final String PIECE_LETTERS = "PNBRQK";
+
+    private San() {
+    }
+
+    /**
+     * Finds the legal move written in SAN. Check and annotation marks are
+     * ignored; castling may be written with letter O or digit zero.
+     *
+     * @param p Position the move is made in
+     * @param s Characters holding the move
+     * @param start Index of the first character
+     * @param end Index one past the last character
+     * @param moves Buffer of at least MoveGenerator.MAX_MOVES for the legal
+     * moves
+     * @return The move, or MALFORMED, ILLEGAL or AMBIGUOUS.
+     */
+    public static int parse(Position p, CharSequence s, int start, int end, int[] moves) {
+        while (end > start && isSuffix(s.charAt(end - 1))) end--;
+        if (end - start < 2) return MALFORMED;
+
+        if (isCastling(s, start, end)) {
+            boolean kingside = end - start == 3;
+            if (!kingside && end - start != 5) return MALFORMED;
+
+            int n = MoveGenerator.generate(p, moves, 0);
+            for (int i = 0; i < n; i++) {
+                if (Move.isCastling(moves[i]) && (Move.to(moves[i]) > Move.from(moves[i])) == kingside) {
+                    return moves[i];
+                }
+            }
+            return ILLEGAL;
+        }
+
+        int type = Position.PAWN;
+        int i = start;
+        char first = s.charAt(i);
+        if (first >= 'B' && first <= 'R' && first != 'P') {
+            type = PIECE_LETTERS.indexOf(first);
+            if (type < 0) return MALFORMED;
+            i++;
+        }
+
+        // Promotion at the end, with or without '='
+        int promotion = 0;
+        char last = s.charAt(end - 1);
+        if (type == Position.PAWN && last >= 'B' && last <= 'R') {
+            promotion = PIECE_LETTERS.indexOf(last);
+            if (promotion <= Position.PAWN || promotion == Position.KING) return MALFORMED;
+            end--;
+            if (end > i && s.charAt(end - 1) == '=') end--;
+        }
+
+        // Destination square is the last two characters
+        if (end - i < 2) return MALFORMED;
+        int toFile = s.charAt(end - 2) - 'a';
+        int toRank = s.charAt(end - 1) - '1';
+        if (toFile < 0 || toFile > 7 || toRank < 0 || toRank > 7) return MALFORMED;
+        int to = toRank * 8 + toFile;
+
+        // Anything in between: origin file and/or rank, capture mark
+        int fromFile = -1;
+        int fromRank = -1;
+        for (int j = i; j < end - 2; j++) {
+            char ch = s.charAt(j);
+            if (ch >= 'a' && ch <= 'h') fromFile = ch - 'a';
+            else if (ch >= '1' && ch <= '8') fromRank = ch - '1';
+            else if (ch != 'x' && ch != ':' && ch != '-') return MALFORMED;
+        }
+
+        int n = MoveGenerator.generate(p, moves, 0);
+        int found = ILLEGAL;
+        for (int k = 0; k < n; k++) {
+            int move = moves[k];
+            int from = Move.from(move);
+            if (Move.to(move) != to || Position.typeOf(p.pieceAt(from)) != type) continue;
+            if (fromFile >= 0 && (from & 7) != fromFile) continue;
+            if (fromRank >= 0 && (from >>> 3) != fromRank) continue;
+
+            int promotes = Move.promotion(move);
+            if (promotes != 0 && promotion == 0) return MALFORMED;
+            if (promotes != promotion) continue;
+
+            if (found != ILLEGAL) return AMBIGUOUS;
+            found = move;
+        }
+
+        return found;
+    }
+
+    /**
+     * @param error MALFORMED, ILLEGAL or AMBIGUOUS
+     * @return Description of the error
+     */
+    public static String describe(int error) {
+        switch (error) {
+            case MALFORMED: return "malformed move";
+            case ILLEGAL: return "illegal move";
+            case AMBIGUOUS: return "ambiguous move";
+            default: return "move";
+        }
+    }
+
+    /**
+     * Writes a legal move in SAN, with the shortest disambiguation and a
+     * check or mate mark.
+     *
+     * @param p Position the move is made in. Restored before returning.
+     * @param move A legal move in the position
+     * @param moves Buffer of at least MoveGenerator.MAX_MOVES
+     * @return The move in SAN
+     */
+    public static String toString(Position p, int move, int[] moves) {
+        StringBuilder sb = new StringBuilder(8);
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int type = Position.typeOf(p.pieceAt(from));
+        boolean capture = p.pieceAt(to) != Position.EMPTY || Move.isEnPassant(move);
+
+        if (Move.isCastling(move)) {
+            sb.append(to > from ? "O-O" : "O-O-O");
+        } else if (type == Position.PAWN) {
+            if (capture) sb.append((char) ('a' + (from & 7))).append('x');
+            sb.append(Move.squareName(to));
+            if (Move.promotion(move) != 0) {
+                sb.append('=').append(PIECE_LETTERS.charAt(Move.promotion(move)));
+            }
+        } else {
+            sb.append(PIECE_LETTERS.charAt(type));
+
+            // Other pieces of the same kind that can reach the same square
+            boolean sameFile = false;
+            boolean sameRank = false;
+            boolean others = false;
+            int n = MoveGenerator.generate(p, moves, 0);
+            for (int i = 0; i < n; i++) {
+                int other = Move.from(moves[i]);
+                if (other == from || Move.to(moves[i]) != to
+                        || Position.typeOf(p.pieceAt(other)) != type) continue;
+                others = true;
+                if ((other & 7) == (from & 7)) sameFile = true;
+                if ((other >>> 3) == (from >>> 3)) sameRank = true;
+            }
+
+            if (others && (!sameFile || sameRank)) sb.append((char) ('a' + (from & 7)));
+            if (others && sameFile) sb.append((char) ('1' + (from >>> 3)));
+            if (capture) sb.append('x');
+            sb.append(Move.squareName(to));
+        }
+
+        p.makeMove(move);
+        if (p.inCheck(p.getSideToMove())) {
+            sb.append(MoveGenerator.generate(p, moves, 0) == 0 ? '#' : '+');
+        }
+        p.unmakeMove(move);
+
+        return sb.toString();
+    }
+
+    private static boolean isSuffix(char ch) {
+        return ch == '+' || ch == '#' || ch == '!' || ch == '?';
+    }
+
+    private static boolean isCastling(CharSequence s, int start, int end) {
+        char ch = s.charAt(start);
+        return (ch == 'O' || ch == '0') && end - start >= 3 && s.charAt(start + 1) == '-';
+    }
+}
@@ -0,0 +1,432 @@
+
+import java.util.Arrays;
+
+/**
+ * Iterative deepening alpha-beta search over the rules engine.
+ *
+ * Each iteration runs a negamax search with alpha-beta pruning to the next
+ * depth, followed by a quiescence search of captures at the leaves. Moves
+ * are ordered by the principal variation of the previous iteration, then
+ * captures by most valuable victim, then killer moves. Results are kept in
+ * a TranspositionTable, which several searches may share. The search works
+ * on its own Position and can be stopped from another thread.
+ *
+ * Usage: java Search [milliseconds] [fen]
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class Search {
+    public static final int MAX_PLY = 128;
+    public static final int INFINITY = 32000;
+    public static final int MATE = 31000;
+
+    /**
+     * Receives a report after each completed iteration.
+     */
+    public interface Listener {
+        void iterationFinished(int depth, int score, long nodes, long millis, int[] pv, int pvLength);
+    }
+
+    private final Position position;
+    private final TranspositionTable table;
+    private final int[][] moves;
+    private final int[][] scores;
+    private final int[][] pv;
+    private final int[] pvLength;
+    private final int[] previousPv;
+    private final int[][] killers;
+
+    private Listener listener;
+    private int startDepth = 1;
+    private volatile boolean stopped;
+    private long deadline;
+    private long nodes;
+
+    private int bestMove;
+    private int bestScore;
+    private int completedDepth;
+
+    /**
+     * Constructs a search working on a position. The position is changed
+     * during the search and restored when it returns.
+     *
+     * @param position Root position
+     */
+    public Search(Position position) {
+        this(position, new TranspositionTable(TranspositionTable.DEFAULT_MEGABYTES));
+    }
+
+    /**
+     * Constructs a search working on a position and storing its results in
+     * a given table.
+     *
+     * @param position Root position
+     * @param table Transposition table, possibly shared with other searches
+     */
+    public Search(Position position, TranspositionTable table) {
+        this.position = position;
+        this.table = table;
+        this.moves = new int[MAX_PLY][MoveGenerator.MAX_MOVES];
+        this.scores = new int[MAX_PLY][MoveGenerator.MAX_MOVES];
+        this.pv = new int[MAX_PLY][MAX_PLY];
+        this.pvLength = new int[MAX_PLY];
+        this.previousPv = new int[MAX_PLY];
+        this.killers = new int[MAX_PLY][2];
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the depth of the first iteration. Helper threads of a parallel
+     * search start deeper so they do not all search the same depth.
+     *
+     * @param startDepth Depth of the first iteration
+     */
+    public void setStartDepth(int startDepth) {
+        this.startDepth = startDepth;
+    }
+
+    /**
+     * Searches the root position with iterative deepening until the depth
+     * or time limit is reached, or stop is called. A stop that came before
+     * the call is kept, so the search then returns its first move at once;
+     * a search that is run again must be reset first.
+     *
+     * @param maxDepth Deepest iteration to run
+     * @param millis Time limit in milliseconds, or 0 for no limit
+     * @return Best move found, or Move.NONE if there is no legal move.
+     */
+    public int search(int maxDepth, long millis) {
+        long start = System.nanoTime();
+        deadline = millis > 0 ? start + millis * 1000000 : Long.MAX_VALUE;
+        nodes = 0;
+        bestMove = Move.NONE;
+        bestScore = 0;
+        completedDepth = 0;
+        Arrays.fill(previousPv, Move.NONE);
+
+        int[] rootMoves = moves[0];
+        int n = MoveGenerator.generate(position, rootMoves, 0);
+        if (n == 0) return Move.NONE;
+        bestMove = rootMoves[0];
+
+        for (int depth = Math.min(startDepth, maxDepth); depth <= Math.min(maxDepth, MAX_PLY - 1); depth++) {
+            int score = negamax(depth, 0, -INFINITY, INFINITY);
+            if (stopped) break;
+
+            bestMove = pv[0][0];
+            bestScore = score;
+            completedDepth = depth;
+            System.arraycopy(pv[0], 0, previousPv, 0, pvLength[0]);
+            for (int i = pvLength[0]; i < MAX_PLY; i++) previousPv[i] = Move.NONE;
+
+            if (listener != null) {
+                listener.iterationFinished(depth, score, nodes,
+                        (System.nanoTime() - start) / 1000000, pv[0], pvLength[0]);
+            }
+
+            // No point searching deeper once a forced mate is found
+            if (Math.abs(score) >= MATE - MAX_PLY) break;
+            if (n == 1) break;
+        }
+
+        return bestMove;
+    }
+
+    /**
+     * Stops a running search. Safe to call from any thread.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Clears a stop, by stop or by the time limit, so the search can be
+     * run again. Must not be called while the search runs.
+     */
+    public void reset() {
+        stopped = false;
+    }
+
+    public int getBestMove() {
+        return bestMove;
+    }
+
+    public int getBestScore() {
+        return bestScore;
+    }
+
+    public int getCompletedDepth() {
+        return completedDepth;
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return Principal variation of the last completed iteration, ending
+     * with Move.NONE if shorter than MAX_PLY.
+     */
+    public int[] getPrincipalVariation() {
+        return previousPv.clone();
+    }
+
+    private int negamax(int depth, int ply, int alpha, int beta) {
+        pvLength[ply] = ply;
+        if (checkStop()) return 0;
+
+        if (ply > 0 && (position.getHalfmoveClock() >= 100 || position.countRepetitions() > 0)) {
+            return 0;
+        }
+
+        boolean inCheck = position.inCheck(position.getSideToMove());
+        if (inCheck) depth++;
+
+        if (depth <= 0 || ply >= MAX_PLY - 1) return quiescence(ply, alpha, beta);
+
+        nodes++;
+        long key = position.getHash();
+        long entry = table.probe(key);
+        int hashMove = pvMove(ply);
+
+        if (entry != 0) {
+            hashMove = TranspositionTable.move(entry);
+
+            // The root is always searched so it has a full principal variation
+            if (ply > 0 && TranspositionTable.depth(entry) >= depth) {
+                int score = fromTable(TranspositionTable.score(entry), ply);
+                int bound = TranspositionTable.bound(entry);
+
+                if (bound == TranspositionTable.EXACT
+                        || (bound == TranspositionTable.LOWER_BOUND && score >= beta)
+                        || (bound == TranspositionTable.UPPER_BOUND && score <= alpha)) {
+                    return score;
+                }
+            }
+        }
+
+        int[] list = moves[ply];
+        int n = MoveGenerator.generate(position, list, 0);
+        if (n == 0) return inCheck ? -MATE + ply : 0;
+
+        orderMoves(ply, n, hashMove);
+
+        int originalAlpha = alpha;
+        int best = -INFINITY;
+        int bestMove = Move.NONE;
+        for (int i = 0; i < n; i++) {
+            int move = pickMove(ply, i, n);
+            boolean capture = isCapture(move);
+
+            position.makeMove(move);
+            int score = -negamax(depth - 1, ply + 1, -beta, -alpha);
+            position.unmakeMove(move);
+
+            if (stopped) return 0;
+
+            if (score > best) {
+                best = score;
+                bestMove = move;
+                if (score > alpha) {
+                    alpha = score;
+                    updatePv(ply, move);
+                }
+                if (score >= beta) {
+                    if (!capture) storeKiller(ply, move);
+                    break;
+                }
+            }
+        }
+
+        int bound = best >= beta ? TranspositionTable.LOWER_BOUND
+                : best > originalAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER_BOUND;
+        table.store(key, bestMove, toTable(best, ply), depth, bound);
+
+        return best;
+    }
+
+    private int quiescence(int ply, int alpha, int beta) {
+        pvLength[ply] = ply;
+        if (checkStop()) return 0;
+        nodes++;
+
+        boolean inCheck = position.inCheck(position.getSideToMove());
+        int[] list = moves[ply];
+        int n = MoveGenerator.generate(position, list, 0);
+        if (n == 0) return inCheck ? -MATE + ply : 0;
+
+        int best = -INFINITY;
+        if (!inCheck) {
+            best = Evaluator.evaluate(position);
+            if (best >= beta || ply >= MAX_PLY - 1) return best;
+            if (best > alpha) alpha = best;
+
+            // Only captures and promotions are searched unless in check
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                if (isCapture(list[i]) || Move.promotion(list[i]) != 0) list[kept++] = list[i];
+            }
+            n = kept;
+        } else if (ply >= MAX_PLY - 1) {
+            return Evaluator.evaluate(position);
+        }
+
+        orderMoves(ply, n, Move.NONE);
+
+        for (int i = 0; i < n; i++) {
+            int move = pickMove(ply, i, n);
+
+            position.makeMove(move);
+            int score = -quiescence(ply + 1, -beta, -alpha);
+            position.unmakeMove(move);
+
+            if (stopped) return 0;
+
+            if (score > best) {
+                best = score;
+                if (score > alpha) {
+                    alpha = score;
+                    updatePv(ply, move);
+                }
+                if (score >= beta) break;
+            }
+        }
+
+        return best;
+    }
+
+    /*
+     * Mate scores are stored as distance to mate from the stored position
+     * rather than from the root, so they stay right when found at another
+     * ply.
+     */
+    private static int toTable(int score, int ply) {
+        if (score >= MATE - MAX_PLY) return score + ply;
+        if (score <= -MATE + MAX_PLY) return score - ply;
+        return score;
+    }
+
+    private static int fromTable(int score, int ply) {
+        if (score >= MATE - MAX_PLY) return score - ply;
+        if (score <= -MATE + MAX_PLY) return score + ply;
+        return score;
+    }
+
+    private boolean checkStop() {
+        if ((nodes & 1023) == 0 && System.nanoTime() > deadline) stopped = true;
+        return stopped;
+    }
+
+    /*
+     * Move from the previous iteration's principal variation at this ply,
+     * tried first when the table has no move. It is only tried if it is
+     * legal here, so lines that left the principal variation are unaffected.
+     */
+    private int pvMove(int ply) {
+        return previousPv[ply];
+    }
+
+    private void updatePv(int ply, int move) {
+        pv[ply][ply] = move;
+        for (int i = ply + 1; i < pvLength[ply + 1]; i++) {
+            pv[ply][i] = pv[ply + 1][i];
+        }
+        pvLength[ply] = Math.max(pvLength[ply + 1], ply + 1);
+    }
+
+    private void storeKiller(int ply, int move) {
+        if (killers[ply][0] != move) {
+            killers[ply][1] = killers[ply][0];
+            killers[ply][0] = move;
+        }
+    }
+
+    private boolean isCapture(int move) {
+        return position.pieceAt(Move.to(move)) != Position.EMPTY || Move.isEnPassant(move);
+    }
+
+    /*
+     * Scores the moves of a ply for ordering. The actual ordering happens
+     * lazily in pickMove, since a cutoff often comes after the first few.
+     */
+    private void orderMoves(int ply, int n, int pvMove) {
+        int[] list = moves[ply];
+        int[] s = scores[ply];
+
+        for (int i = 0; i < n; i++) {
+            int move = list[i];
+            int victim = position.pieceAt(Move.to(move));
+
+            if (move == pvMove) {
+                s[i] = 1000000;
+            } else if (victim != Position.EMPTY) {
+                int attacker = Position.typeOf(position.pieceAt(Move.from(move)));
+                s[i] = 100000 + Evaluator.PIECE_VALUES[Position.typeOf(victim)] * 10
+                        - Evaluator.PIECE_VALUES[attacker] / 10;
+            } else if (Move.promotion(move) != 0) {
+                s[i] = 90000 + Move.promotion(move);
+            } else if (Move.isEnPassant(move)) {
+                s[i] = 100000 + 1000 - 10;
+            } else if (move == killers[ply][0]) {
+                s[i] = 80000;
+            } else if (move == killers[ply][1]) {
+                s[i] = 70000;
+            } else {
+                s[i] = 0;
+            }
+        }
+    }
+
+    /*
+     * Swaps the best scored of the remaining moves into slot i.
+     */
+    private int pickMove(int ply, int i, int n) {
+        int[] list = moves[ply];
+        int[] s = scores[ply];
+        int best = i;
+
+        for (int j = i + 1; j < n; j++) {
+            if (s[j] > s[best]) best = j;
+        }
+
+        int move = list[best];
+        list[best] = list[i];
+        list[i] = move;
+        int score = s[best];
+        s[best] = s[i];
+        s[i] = score;
+
+        return move;
+    }
+
+    public static void main(String[] args) {
+        long moveTime = args.length > 0 ? Long.parseLong(args[0]) : 5000;
+        String fen = Perft.START_FEN;
+        if (args.length > 1) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 1; i < args.length; i++) sb.append(args[i]).append(' ');
+            fen = sb.toString();
+        }
+
+        Search search = new Search(Position.fromFen(fen));
+        search.setListener(new Listener() {
+            public void iterationFinished(int depth, int score, long nodes, long millis,
+                    int[] pv, int pvLength) {
+                StringBuilder line = new StringBuilder();
+                line.append("depth ").append(depth).append(" score ").append(score)
+                        .append(" nodes ").append(nodes).append(" time ").append(millis)
+                        .append(" nps ").append(millis == 0 ? 0 : nodes * 1000 / millis)
+                        .append(" pv");
+                for (int i = 0; i < pvLength; i++) line.append(' ').append(Move.toString(pv[i]));
+                System.out.println(line);
+            }
+        });
+
+        int move = search.search(MAX_PLY, moveTime);
+        System.out.println("bestmove " + Move.toString(move));
+    }
+}
@@ -0,0 +1,107 @@
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Process-wide cache of the game's images. The piece sprites are decoded
+ * once into a single atlas image, one row per color, in a format compatible
+ * with the screen so drawing them needs no conversion. Every piece and
+ * window shares the same images.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class Sprites {
+    // Piece sprite files indexed by color and piece type
+    public static final String[][] PIECE_FILES = {
+        {"bpawn.png", "bknight.png", "bbishop.png", "brook.png", "bqueen.png", "bking.png"},
+        {"wpawn.png", "wknight.png", "wbishop.png", "wrook.png", "wqueen.png", "wking.png"}
+    };
+
+    public static final int PIECE_SIZE = 48;
+
+    private static final Map<String, BufferedImage> images = new HashMap<String, BufferedImage>();
+    private static boolean atlasLoaded;
+
+    private Sprites() {
+    }
+
+    /**
+     * Returns an image from the resources, decoding it the first time it is
+     * asked for.
+     *
+     * @param file Name of the image file
+     * @return The image, or null if the file is missing.
+     */
+    public static synchronized BufferedImage get(String file) {
+        if (!atlasLoaded) loadAtlas();
+
+        if (!images.containsKey(file)) images.put(file, load(file));
+        return images.get(file);
+    }
+
+    /*
+     * Draws every piece sprite into one atlas and registers the pieces as
+     * views into it.
+     */
+    private static void loadAtlas() {
+        atlasLoaded = true;
+        BufferedImage atlas = createImage(PIECE_SIZE * 6, PIECE_SIZE * 2);
+        Graphics2D g = atlas.createGraphics();
+
+        for (int color = 0; color < 2; color++) {
+            for (int type = 0; type < 6; type++) {
+                BufferedImage img = read(PIECE_FILES[color][type]);
+                BufferedImage sprite = null;
+
+                if (img != null) {
+                    int x = type * PIECE_SIZE;
+                    int y = color * PIECE_SIZE;
+                    g.drawImage(img, x, y, null);
+                    sprite = atlas.getSubimage(x, y, img.getWidth(), img.getHeight());
+                }
+                images.put(PIECE_FILES[color][type], sprite);
+            }
+        }
+
+        g.dispose();
+    }
+
+    private static BufferedImage load(String file) {
+        BufferedImage img = read(file);
+        if (img == null) return null;
+
+        BufferedImage compatible = createImage(img.getWidth(), img.getHeight());
+        Graphics2D g = compatible.createGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return compatible;
+    }
+
+    private static BufferedImage read(String file) {
+        try {
+            URL url = Sprites.class.getResource(file);
+            if (url == null) throw new IOException(file);
+            return ImageIO.read(url);
+        } catch (IOException e) {
+            System.out.println("File not found: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static BufferedImage createImage(int width, int height) {
+        if (GraphicsEnvironment.isHeadless()) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                .getDefaultConfiguration()
+                .createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    }
+}
@@ -1,12 +1,12 @@
 
-
-import java.awt.Color;
-import java.awt.Graphics;
-
-import javax.swing.*;
-
-@SuppressWarnings("serial")
-public class Square extends JComponent {
+/**
+ * One square of the board: its color, coordinates and the piece on it. The
+ * squares are painted by the Board itself.
+ * 
+ * @author Jussi Lundstedt
+ *
+ */
+public class Square {
     private Board b;
     
     private final int color;
@@ -23,9 +23,6 @@ public class Square extends JComponent {
         this.dispPiece = true;
         this.xNum = xNum;
         this.yNum = yNum;
-        
-        
-        this.setBorder(BorderFactory.createEmptyBorder());
     }
     
     public int getColor() {
@@ -48,21 +45,49 @@ public class Square extends JComponent {
         return this.yNum;
     }
     
+    // Pixel coordinates of the square's top left corner on the board
+    public int getX() {
+        return this.xNum * Board.SQUARE_SIZE;
+    }
+    
+    public int getY() {
+        return this.yNum * Board.SQUARE_SIZE;
+    }
+    
     public void setDisplay(boolean v) {
         this.dispPiece = v;
     }
     
+    public boolean isDisplayed() {
+        return this.dispPiece;
+    }
+    
+    public int getIndex() {
+        return Position.square(xNum, yNum);
+    }
+    
+    // Placement changes are written through to the board's position model
     public void put(Piece p) {
         this.occupyingPiece = p;
         p.setPosition(this);
+        b.getPosition().put(getIndex(), p.getColor(), p.getType());
     }
     
     public Piece removePiece() {
         Piece p = this.occupyingPiece;
         this.occupyingPiece = null;
+        b.getPosition().remove(getIndex());
         return p;
     }
     
+    // Shows a piece on this square without touching the position model, for
+    // moves that have already been made on the position
+    public void setOccupyingPiece(Piece p) {
+        this.occupyingPiece = p;
+        this.dispPiece = true;
+        if (p != null) p.setPosition(this);
+    }
+    
     public void capture(Piece p) {
         Piece k = getOccupyingPiece();
         if (k.getColor() == 0) b.Bpieces.remove(k);
@@ -70,22 +95,6 @@ public class Square extends JComponent {
         this.occupyingPiece = p;
     }
     
-    public void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        
-        if (this.color == 1) {
-            g.setColor(new Color(221,192,127));
-        } else {
-            g.setColor(new Color(101,67,33));
-        }
-        
-        g.fillRect(this.getX(), this.getY(), this.getWidth(), this.getHeight());
-        
-        if(occupyingPiece != null && dispPiece) {
-            occupyingPiece.draw(g);
-        }
-    }
-    
     @Override
     public int hashCode() {
         int prime = 31;
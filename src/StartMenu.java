@@ -5,7 +5,6 @@ import java.awt.Image;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
-import javax.imageio.ImageIO;
 import javax.swing.Box;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
@@ -17,12 +16,15 @@ import javax.swing.JPanel;
 import javax.swing.JTextField;
 
 public class StartMenu implements Runnable {
+    // Who plays each side, the index of the computer is checked on start
+    private static final String[] PLAYERS = {"Human", "Computer"};
+    
     public void run() {
         final JFrame startWindow = new JFrame("Chess");
         // Set window properties
         startWindow.setLocation(300,100);
         startWindow.setResizable(false);
-        startWindow.setSize(260, 240);
+        startWindow.setSize(360, 300);
         
         Box components = Box.createVerticalBox();
         startWindow.add(components);
@@ -37,36 +39,36 @@ public class StartMenu implements Runnable {
         final JPanel blackPanel = new JPanel();
         components.add(blackPanel, BorderLayout.EAST);
         final JLabel blackPiece = new JLabel();
-        try {
-            Image blackImg = ImageIO.read(getClass().getResource("bp.png"));
+        Image blackImg = Sprites.get("bp.png");
+        if (blackImg != null) {
             blackPiece.setIcon(new ImageIcon(blackImg));
             blackPanel.add(blackPiece);
-        } catch (Exception e) {
-            System.out.println("Required game file bp.png missing");
         }
         
         
         
         final JTextField blackInput = new JTextField("Black", 10);
         blackPanel.add(blackInput);
+        final JComboBox<String> blackPlayer = new JComboBox<String>(PLAYERS);
+        blackPanel.add(blackPlayer);
         
         // White player selections
         final JPanel whitePanel = new JPanel();
         components.add(whitePanel);
         final JLabel whitePiece = new JLabel();
         
-        try {
-            Image whiteImg = ImageIO.read(getClass().getResource("wp.png"));
+        Image whiteImg = Sprites.get("wp.png");
+        if (whiteImg != null) {
             whitePiece.setIcon(new ImageIcon(whiteImg));
             whitePanel.add(whitePiece);
             startWindow.setIconImage(whiteImg);
-        }  catch (Exception e) {
-            System.out.println("Required game file wp.png missing");
         }
         
         
         final JTextField whiteInput = new JTextField("White", 10);
         whitePanel.add(whiteInput);
+        final JComboBox<String> whitePlayer = new JComboBox<String>(PLAYERS);
+        whitePanel.add(whitePlayer);
         
         // Timer settings
         final String[] minSecInts = new String[60];
@@ -91,14 +93,32 @@ public class StartMenu implements Runnable {
         
         timerSettings.add(hours);
         timerSettings.add(Box.createHorizontalStrut(10));
-        timerSettings.add(seconds);
-        timerSettings.add(Box.createHorizontalStrut(10));
         timerSettings.add(minutes);
+        timerSettings.add(Box.createHorizontalStrut(10));
+        timerSettings.add(seconds);
         
         timerSettings.add(Box.createVerticalGlue());
         
         components.add(timerSettings);
         
+        // Seconds added after each move, and seconds of each move given back
+        final JComboBox<String> increment = new JComboBox<String>(minSecInts);
+        final JComboBox<String> delay = new JComboBox<String>(minSecInts);
+        increment.setMaximumSize(increment.getPreferredSize());
+        delay.setMaximumSize(delay.getPreferredSize());
+        
+        Box moveSettings = Box.createHorizontalBox();
+        moveSettings.add(new JLabel("Increment"));
+        moveSettings.add(Box.createHorizontalStrut(5));
+        moveSettings.add(increment);
+        moveSettings.add(Box.createHorizontalStrut(15));
+        moveSettings.add(new JLabel("Delay"));
+        moveSettings.add(Box.createHorizontalStrut(5));
+        moveSettings.add(delay);
+        
+        components.add(Box.createVerticalStrut(5));
+        components.add(moveSettings);
+        
         // Buttons
         Box buttons = Box.createHorizontalBox();
         final JButton quit = new JButton("Quit");
@@ -115,9 +135,13 @@ public class StartMenu implements Runnable {
             public void actionPerformed(ActionEvent e) {
                 JOptionPane.showMessageDialog(startWindow,
                         "To begin a new game, input player names\n" +
-                        "next to the pieces. Set the clocks and\n" +
-                        "click \"Start\". Setting the timer to all\n" +
-                        "zeroes begins a new untimed game.",
+                        "next to the pieces. Set the clocks in\n" +
+                        "hours, minutes and seconds, and the seconds\n" +
+                        "added after each move or given back from\n" +
+                        "it, then click \"Start\". Setting the timer\n" +
+                        "to all zeroes begins a new untimed game.\n" +
+                        "Choose \"Computer\" to let the computer play\n" +
+                        "a side.",
                         "How to play",
                         JOptionPane.PLAIN_MESSAGE);
             }
@@ -132,8 +156,13 @@ public class StartMenu implements Runnable {
                 int hh = Integer.parseInt((String) hours.getSelectedItem());
                 int mm = Integer.parseInt((String) minutes.getSelectedItem());
                 int ss = Integer.parseInt((String) seconds.getSelectedItem());
+                int inc = Integer.parseInt((String) increment.getSelectedItem());
+                int del = Integer.parseInt((String) delay.getSelectedItem());
+                
+                boolean be = blackPlayer.getSelectedIndex() == 1;
+                boolean we = whitePlayer.getSelectedIndex() == 1;
                 
-                new GameWindow(bn, wn, hh, mm, ss);
+                new GameWindow(bn, wn, hh, mm, ss, inc, del, be, we);
                 startWindow.dispose();
             }
           });
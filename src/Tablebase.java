@@ -0,0 +1,410 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exact results of small endgames, read from tables made by
+ * TablebaseGenerator. Each table covers one material signature, such as
+ * KQK (white king and queen against the black king), and is a memory
+ * mapped file of one byte per position, so probing costs one index
+ * computation and one read.
+ *
+ * A position's index is its side to move in the lowest bit, above it the
+ * squares of the pieces in the order of the signature, six bits each, with
+ * the last piece lowest. Identical pieces appear in order of their squares,
+ * and positions with them out of order are invalid. Entries hold:
+ *
+ *   0         draw
+ *   n + 1     side to move wins (n odd) or loses (n even) in n plies
+ *   INVALID   position cannot occur with this side to move
+ *
+ * Positions with castling rights are not covered. A position with an en
+ * passant capture is looked up one ply deeper.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class Tablebase {
+    // Returned by probe when there is no table for the position
+    public static final int NOT_FOUND = Integer.MIN_VALUE;
+    public static final int MAX_PIECES = 5;
+    public static final String DEFAULT_DIRECTORY = "tablebases";
+    public static final String SUFFIX = ".tb";
+
+    static final int INVALID = 255;
+
+    private static final String PIECE_LETTERS = "PNBRQK";
+    private static final int[] MATERIAL = {1, 3, 3, 5, 9, 0};
+
+    private static Tablebase defaultTablebase;
+    private static boolean defaultOpened;
+
+    private final Path directory;
+    // Tables opened so far, and signatures found to have no file
+    private final Map<String, Table> tables = new ConcurrentHashMap<String, Table>();
+    private final Set<String> missing = ConcurrentHashMap.<String>newKeySet();
+
+    /**
+     * @param directory Directory holding the table files
+     */
+    public Tablebase(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the default tablebases once: the directory named by the
+     * chess.tablebases system property, or DEFAULT_DIRECTORY in the working
+     * directory.
+     *
+     * @return The tablebases, or null if the directory does not exist.
+     */
+    public static synchronized Tablebase getDefault() {
+        if (!defaultOpened) {
+            defaultOpened = true;
+            Path dir = Paths.get(System.getProperty("chess.tablebases", DEFAULT_DIRECTORY));
+            if (Files.isDirectory(dir)) defaultTablebase = new Tablebase(dir);
+        }
+        return defaultTablebase;
+    }
+
+    /**
+     * Looks up the exact result of a position.
+     *
+     * @param p The position. Restored before returning.
+     * @return Score for the side to move in Search's terms: 0 for a draw,
+     * Search.MATE - n for a mate in n plies and -(Search.MATE - n) for being
+     * mated in n plies; or NOT_FOUND.
+     */
+    public int probe(Position p) {
+        if (p.getCastlingRights() != 0 || Long.bitCount(p.occupied()) > MAX_PIECES) {
+            return NOT_FOUND;
+        }
+        if (Long.bitCount(p.occupied()) == 2) return 0;
+
+        int ep = p.getEnPassantSquare();
+        if (ep != Position.NO_SQUARE
+                && (p.pieces(p.getSideToMove(), Position.PAWN)
+                        & Attacks.pawnAttacks(p.getSideToMove() ^ 1, ep)) != 0) {
+            return probeMoves(p);
+        }
+
+        // Tables have the stronger side as white; look up the other side's
+        // strength as white on the mirrored board
+        String white = sideSignature(p, Position.WHITE);
+        String black = sideSignature(p, Position.BLACK);
+        boolean flip = !isCanonical(white, black);
+        Table table = table(flip ? black + white : white + black);
+        if (table == null) return NOT_FOUND;
+
+        int value = table.get(table.index(p, flip));
+        return score(value);
+    }
+
+    /*
+     * Scores a position by its moves, for positions whose en passant right
+     * the tables do not record.
+     */
+    private int probeMoves(Position p) {
+        int[] moves = new int[MoveGenerator.MAX_MOVES];
+        int n = MoveGenerator.generate(p, moves, 0);
+        if (n == 0) return p.inCheck(p.getSideToMove()) ? -Search.MATE : 0;
+        int best = -Search.INFINITY;
+
+        for (int i = 0; i < n; i++) {
+            p.makeMove(moves[i]);
+            int score = probe(p);
+            p.unmakeMove(moves[i]);
+            if (score == NOT_FOUND) return NOT_FOUND;
+
+            // One ply further from the mate
+            score = score > 0 ? -score + 1 : score < 0 ? -score - 1 : 0;
+            best = Math.max(best, score);
+        }
+        return best;
+    }
+
+    /**
+     * @param value Entry of a table
+     * @return The entry as a score, as returned by probe.
+     */
+    static int score(int value) {
+        if (value == INVALID) return NOT_FOUND;
+        if (value == 0) return 0;
+        int plies = value - 1;
+        return (plies & 1) != 0 ? Search.MATE - plies : -(Search.MATE - plies);
+    }
+
+    /**
+     * @return A score from probe in words, e.g. "win in 12 moves".
+     */
+    public static String describe(int score) {
+        if (score == NOT_FOUND) return "unknown";
+        if (score == 0) return "draw";
+        int plies = Search.MATE - Math.abs(score);
+        if (plies == 0) return "checkmated";
+        return (score > 0 ? "win in " : "loss in ") + (plies + 1) / 2 + " moves";
+    }
+
+    private Table table(String signature) {
+        Table table = tables.get(signature);
+        if (table != null || missing.contains(signature)) return table;
+        return open(signature);
+    }
+
+    private synchronized Table open(String signature) {
+        Table table = tables.get(signature);
+        if (table != null || missing.contains(signature)) return table;
+
+        Path file = directory.resolve(signature + SUFFIX);
+        if (Files.isRegularFile(file)) {
+            try {
+                table = Table.open(signature, file);
+                tables.put(signature, table);
+                return table;
+            } catch (IOException e) {
+                System.err.println("Cannot read tablebase " + file + ": " + e.getMessage());
+            }
+        }
+        missing.add(signature);
+        return null;
+    }
+
+    /*
+     * King first, then the other pieces from the queen down, e.g. "KRP".
+     */
+    private static String sideSignature(Position p, int color) {
+        StringBuilder sb = new StringBuilder(MAX_PIECES);
+        sb.append('K');
+        for (int type = Position.QUEEN; type >= Position.PAWN; type--) {
+            for (int i = Long.bitCount(p.pieces(color, type)); i > 0; i--) {
+                sb.append(PIECE_LETTERS.charAt(type));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return Whether the first side should be white in the table for these
+     * two sides: it has more material, or as much and sorts first.
+     */
+    static boolean isCanonical(String first, String second) {
+        int a = material(first);
+        int b = material(second);
+        if (a != b) return a > b;
+        if (first.length() != second.length()) return first.length() > second.length();
+        for (int i = 0; i < first.length(); i++) {
+            int x = PIECE_LETTERS.indexOf(first.charAt(i));
+            int y = PIECE_LETTERS.indexOf(second.charAt(i));
+            if (x != y) return x > y;
+        }
+        return true;
+    }
+
+    private static int material(String side) {
+        int sum = 0;
+        for (int i = 0; i < side.length(); i++) {
+            sum += MATERIAL[PIECE_LETTERS.indexOf(side.charAt(i))];
+        }
+        return sum;
+    }
+
+    /**
+     * Puts a signature into the form tables are stored under, e.g. "KKQ"
+     * becomes "KQK".
+     *
+     * @param signature White's pieces then black's, each starting with K
+     * @return The signature with the stronger side first and each side's
+     * pieces ordered from the queen down
+     * @throws IllegalArgumentException if the signature cannot be read
+     */
+    public static String canonical(String signature) {
+        int split = signature.indexOf('K', 1);
+        if (!signature.startsWith("K") || split < 0 || signature.indexOf('K', split + 1) >= 0
+                || signature.length() > MAX_PIECES) {
+            throw new IllegalArgumentException("Bad material signature: " + signature);
+        }
+
+        String white = sortSide(signature.substring(0, split));
+        String black = sortSide(signature.substring(split));
+        return isCanonical(white, black) ? white + black : black + white;
+    }
+
+    private static String sortSide(String side) {
+        StringBuilder sb = new StringBuilder("K");
+        for (int type = Position.QUEEN; type >= Position.PAWN; type--) {
+            char letter = PIECE_LETTERS.charAt(type);
+            for (int i = 1; i < side.length(); i++) {
+                char ch = side.charAt(i);
+                if (PIECE_LETTERS.indexOf(ch) < 0 || ch == 'K') {
+                    throw new IllegalArgumentException("Bad piece " + ch + " in " + side);
+                }
+                if (ch == letter) sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One table: the pieces of its signature and its entries.
+     */
+    static final class Table {
+        final String signature;
+        // Piece codes in index order
+        final int[] pieces;
+        final long size;
+        final Bytes entries;
+
+        Table(String signature, Bytes entries) {
+            this.signature = signature;
+            this.pieces = parse(signature);
+            this.size = sizeOf(pieces.length);
+            this.entries = entries;
+        }
+
+        static Table open(String signature, Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = sizeOf(parse(signature).length);
+                if (channel.size() != size) throw new IOException("Wrong size for " + signature);
+                return new Table(signature, new Bytes(channel, size, FileChannel.MapMode.READ_ONLY));
+            }
+        }
+
+        static long sizeOf(int pieces) {
+            return 2L << (6 * pieces);
+        }
+
+        static int[] parse(String signature) {
+            int[] pieces = new int[signature.length()];
+            int color = Position.WHITE;
+            for (int i = 0; i < pieces.length; i++) {
+                int type = PIECE_LETTERS.indexOf(signature.charAt(i));
+                if (i > 0 && type == Position.KING) color = Position.BLACK;
+                pieces[i] = Position.makePiece(color, type);
+            }
+            return pieces;
+        }
+
+        int get(long index) {
+            return entries.get(index);
+        }
+
+        /**
+         * @param p A position with this table's material
+         * @param flip Whether the colors are swapped and the board mirrored
+         * @return Index of the position
+         */
+        long index(Position p, boolean flip) {
+            long index = 0;
+            int i = 0;
+            while (i < pieces.length) {
+                int color = Position.colorOf(pieces[i]) ^ (flip ? 1 : 0);
+                long bb = p.pieces(color, Position.typeOf(pieces[i]));
+                // Identical pieces in order of their squares
+                int first = i;
+                while (i < pieces.length && pieces[i] == pieces[first]) i++;
+                if (flip) bb = Long.reverseBytes(bb);
+                for (; bb != 0; bb &= bb - 1) {
+                    index = (index << 6) | Long.numberOfTrailingZeros(bb);
+                }
+            }
+            int side = p.getSideToMove() ^ (flip ? 1 : 0);
+            return (index << 1) | side;
+        }
+
+        /**
+         * @param squares Square of each piece, in index order
+         * @param side Side to move
+         * @return Index of the position
+         */
+        static long index(int[] squares, int side) {
+            long index = 0;
+            for (int sq : squares) {
+                index = (index << 6) | sq;
+            }
+            return (index << 1) | side;
+        }
+
+        /**
+         * @param index Index of a position
+         * @param squares Receives the square of each piece
+         * @return Side to move
+         */
+        static int decode(long index, int[] squares) {
+            long rest = index >>> 1;
+            for (int i = squares.length - 1; i >= 0; i--) {
+                squares[i] = (int) (rest & 63);
+                rest >>>= 6;
+            }
+            return (int) (index & 1);
+        }
+    }
+
+    /**
+     * Bytes in a memory mapped file, addressed by long index across as many
+     * 1 GB mappings as needed.
+     */
+    static final class Bytes {
+        private static final int SEGMENT_SHIFT = 30;
+        private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+        private static final VarHandle INTS =
+                MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+        private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+        private final MappedByteBuffer[] segments;
+
+        /**
+         * Maps a file, growing it to the size if it is writable. The
+         * mappings stay valid after the channel is closed.
+         */
+        Bytes(FileChannel channel, long size, FileChannel.MapMode mode) throws IOException {
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(mode, start, Math.min(1L << SEGMENT_SHIFT, size - start));
+            }
+        }
+
+        int get(long i) {
+            return segments[(int) (i >>> SEGMENT_SHIFT)].get((int) (i & SEGMENT_MASK)) & 0xFF;
+        }
+
+        void set(long i, int value) {
+            segments[(int) (i >>> SEGMENT_SHIFT)].put((int) (i & SEGMENT_MASK), (byte) value);
+        }
+
+        /**
+         * Atomically takes one from a byte that is above zero.
+         *
+         * @return The new value
+         */
+        int decrement(long i) {
+            ByteBuffer b = segments[(int) (i >>> SEGMENT_SHIFT)];
+            int at = (int) (i & SEGMENT_MASK);
+            int word = at & ~3;
+            int shift = 8 * (LITTLE_ENDIAN ? at & 3 : 3 - (at & 3));
+
+            while (true) {
+                int old = (int) INTS.getVolatile(b, word);
+                int updated = old - (1 << shift);
+                if (INTS.compareAndSet(b, word, old, updated)) return (updated >>> shift) & 0xFF;
+            }
+        }
+
+        void force() {
+            for (MappedByteBuffer b : segments) {
+                b.force();
+            }
+        }
+    }
+}
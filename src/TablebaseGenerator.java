@@ -0,0 +1,525 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds the endgame tables read by Tablebase, by retrograde analysis.
+ *
+ * Every position of a table is first classified with the legal move
+ * generator: checkmates are lost at once, and captures and promotions are
+ * scored from the smaller tables they lead to, which are built first. The
+ * table is then solved a ply at a time. At level n, the positions lost in
+ * n - 1 plies make their predecessors (found by taking back a quiet move)
+ * won in n plies, and positions won in n - 1 plies take one move from the
+ * count of each predecessor, which is lost once it has no other moves.
+ * Whatever is left when no more positions resolve is drawn.
+ *
+ * The table and the move counts are kept in memory mapped files rather than
+ * on the heap, and each level is split across a fork-join pool. Positions
+ * after a double pawn push are solved without their en passant right.
+ *
+ * Usage: java TablebaseGenerator signature... [threads]
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class TablebaseGenerator {
+    // Positions handled by one task
+    private static final int LEAF_SIZE = 1 << 16;
+    // Longest distance to mate an entry can hold
+    private static final int MAX_LEVEL = Tablebase.INVALID - 2;
+    private static final String PIECES = "QRBNP";
+
+    private final Path directory;
+    private final ForkJoinPool pool;
+    private final Tablebase tablebase;
+
+    /**
+     * @param directory Directory to write tables to and read smaller ones
+     * from
+     * @param threads Number of worker threads
+     */
+    public TablebaseGenerator(Path directory, int threads) {
+        this.directory = directory;
+        this.pool = new ForkJoinPool(threads);
+        this.tablebase = new Tablebase(directory);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Builds a table and the smaller ones it depends on, skipping tables
+     * that already exist.
+     *
+     * @param signature White's pieces then black's, e.g. "KRK"
+     * @return Descriptions of the tables built
+     * @throws IOException if a table cannot be written
+     */
+    public List<String> generate(String signature) throws IOException {
+        List<String> reports = new ArrayList<String>();
+        generate(Tablebase.canonical(signature), reports);
+        return reports;
+    }
+
+    private void generate(String signature, List<String> reports) throws IOException {
+        if (signature.length() <= 2 || Files.exists(file(signature))) return;
+        for (String child : children(signature)) {
+            generate(child, reports);
+        }
+        reports.add(build(signature));
+    }
+
+    private Path file(String signature) {
+        return directory.resolve(signature + Tablebase.SUFFIX);
+    }
+
+    /*
+     * Signatures reached by a capture or a promotion.
+     */
+    static Set<String> children(String signature) {
+        Set<String> children = new LinkedHashSet<String>();
+        for (int i = 0; i < signature.length(); i++) {
+            char ch = signature.charAt(i);
+            if (ch == 'K') continue;
+
+            String before = signature.substring(0, i);
+            String after = signature.substring(i + 1);
+            if (before.length() + after.length() > 2) {
+                children.add(Tablebase.canonical(before + after));
+            }
+            if (ch == 'P') {
+                for (int j = 0; j < 4; j++) {
+                    children.add(Tablebase.canonical(before + PIECES.charAt(j) + after));
+                }
+            }
+        }
+        return children;
+    }
+
+    /*
+     * Solves one table, whose smaller tables all exist, and writes it.
+     */
+    private String build(String signature) throws IOException {
+        long start = System.nanoTime();
+        Path part = directory.resolve(signature + Tablebase.SUFFIX + ".part");
+        Path scratch = Files.createTempFile(directory, signature, ".scratch");
+        long size = Tablebase.Table.sizeOf(signature.length());
+        Generation g;
+
+        try (FileChannel values = FileChannel.open(part, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+                FileChannel work = FileChannel.open(scratch, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+            g = new Generation(signature,
+                    new Tablebase.Bytes(values, size, FileChannel.MapMode.READ_WRITE),
+                    new Tablebase.Bytes(work, 2 * size, FileChannel.MapMode.READ_WRITE));
+
+            pool.invoke(new Pass(g, 0, 0, size));
+            long initNanos = System.nanoTime() - start;
+
+            int level = 1;
+            while (true) {
+                if (level > MAX_LEVEL) throw new IOException(signature + " has mates too long to store");
+                g.changed.set(0);
+                pool.invoke(new Pass(g, level, 0, size));
+                if (g.changed.get() == 0 && level >= g.maxPending.get()) break;
+                level++;
+            }
+
+            g.values.force();
+            long nanos = System.nanoTime() - start;
+            Files.move(part, file(signature), StandardCopyOption.REPLACE_EXISTING);
+            return report(g, level, initNanos, nanos);
+        } finally {
+            Files.deleteIfExists(part);
+            Files.deleteIfExists(scratch);
+        }
+    }
+
+    private String report(Generation g, int levels, long initNanos, long nanos) {
+        long valid = 0;
+        long wins = 0;
+        long losses = 0;
+        int longest = 0;
+        long longestIndex = -1;
+
+        for (long i = 0; i < g.size; i++) {
+            int v = g.values.get(i);
+            if (v == Tablebase.INVALID) continue;
+            valid++;
+            if (v == 0) continue;
+            if ((v & 1) == 0) wins++;
+            else losses++;
+            if (v - 1 > longest) {
+                longest = v - 1;
+                longestIndex = i;
+            }
+        }
+
+        String report = String.format("%s: %d positions, %d valid: %d won, %d drawn, %d lost "
+                + "by the side to move; built in %.2f s (%.2f s classifying, %d levels)",
+                g.signature, g.size, valid, wins, valid - wins - losses, losses,
+                nanos / 1e9, initNanos / 1e9, levels);
+        if (longestIndex >= 0) {
+            int[] squares = new int[g.pieces.length];
+            Position p = new Position();
+            place(p, g.pieces, squares, Tablebase.Table.decode(longestIndex, squares));
+            report += "\n  longest: " + (longest + 1) / 2 + " moves to mate, " + p.toFen();
+        }
+        return report;
+    }
+
+    /**
+     * Times probes of random positions from a table through Tablebase.
+     *
+     * @param signature Table to probe
+     * @param count Number of probes
+     * @return Average nanoseconds per probe
+     */
+    public long probeLatency(String signature, int count) {
+        signature = Tablebase.canonical(signature);
+        int[] pieces = Tablebase.Table.parse(signature);
+        int[] squares = new int[pieces.length];
+        long size = Tablebase.Table.sizeOf(pieces.length);
+        Random random = new Random(1);
+
+        // A set of valid positions, probed in turn
+        Position[] positions = new Position[1024];
+        for (int n = 0; n < positions.length; ) {
+            long index = (random.nextLong() >>> 1) % size;
+            Position p = new Position();
+            int side = Tablebase.Table.decode(index, squares);
+            if (!isValid(pieces, squares)) continue;
+            place(p, pieces, squares, side);
+            if (p.inCheck(side ^ 1)) continue;
+            positions[n++] = p;
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            tablebase.probe(positions[i & (positions.length - 1)]);
+        }
+        long nanos = System.nanoTime() - start;
+        return nanos / Math.max(1, count);
+    }
+
+    /*
+     * Squares must be distinct, pawns off the first and last ranks, and
+     * identical pieces in order of their squares.
+     */
+    static boolean isValid(int[] pieces, int[] squares) {
+        long occupied = 0;
+        for (int i = 0; i < squares.length; i++) {
+            long bit = 1L << squares[i];
+            if ((occupied & bit) != 0) return false;
+            occupied |= bit;
+
+            if (Position.typeOf(pieces[i]) == Position.PAWN
+                    && ((squares[i] >>> 3) == 0 || (squares[i] >>> 3) == 7)) return false;
+            if (i > 0 && pieces[i] == pieces[i - 1] && squares[i] < squares[i - 1]) return false;
+        }
+        return true;
+    }
+
+    /*
+     * Sets a position to hold exactly the given pieces.
+     */
+    static void place(Position p, int[] pieces, int[] squares, int side) {
+        for (long bb = p.occupied(); bb != 0; bb &= bb - 1) {
+            p.remove(Long.numberOfTrailingZeros(bb));
+        }
+        for (int i = 0; i < pieces.length; i++) {
+            p.put(squares[i], Position.colorOf(pieces[i]), Position.typeOf(pieces[i]));
+        }
+        p.setSideToMove(side);
+    }
+
+    /*
+     * A table being built: its entries, the move counts and pending levels
+     * of its positions, and progress shared by the tasks.
+     */
+    private class Generation {
+        final String signature;
+        final int[] pieces;
+        final long size;
+        final Tablebase.Bytes values;
+        // Moves not yet known to lose at index i; at size + i, the level of
+        // the quickest win by capture or promotion if odd, otherwise of the
+        // slowest loss by one
+        final Tablebase.Bytes work;
+        final AtomicLong changed = new AtomicLong();
+        final AtomicInteger maxPending = new AtomicInteger();
+
+        Generation(String signature, Tablebase.Bytes values, Tablebase.Bytes work) {
+            this.signature = signature;
+            this.pieces = Tablebase.Table.parse(signature);
+            this.size = Tablebase.Table.sizeOf(pieces.length);
+            this.values = values;
+            this.work = work;
+        }
+    }
+
+    /*
+     * Classifies (level 0) or solves one level of a range of positions,
+     * splitting it while it is large.
+     */
+    @SuppressWarnings("serial")
+    private class Pass extends RecursiveAction {
+        private final Generation g;
+        private final int level;
+        private final long start;
+        private final long end;
+
+        Pass(Generation g, int level, long start, long end) {
+            this.g = g;
+            this.level = level;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > LEAF_SIZE) {
+                long mid = (start + end) >>> 1;
+                invokeAll(new Pass(g, level, start, mid), new Pass(g, level, mid, end));
+                return;
+            }
+
+            Worker w = new Worker(g);
+            for (long i = start; i < end; i++) {
+                if (level == 0) w.classify(i);
+                else w.solve(i, level);
+            }
+            w.finish();
+        }
+    }
+
+    /*
+     * Work space of one task.
+     */
+    private class Worker {
+        private final Generation g;
+        private final Position p = new Position();
+        private final int[] moves = new int[MoveGenerator.MAX_MOVES];
+        private final int[] squares;
+        private final int[] sorted;
+        private long changed;
+        private int maxPending;
+
+        Worker(Generation g) {
+            this.g = g;
+            this.squares = new int[g.pieces.length];
+            this.sorted = new int[g.pieces.length];
+        }
+
+        void classify(long index) {
+            int side = Tablebase.Table.decode(index, squares);
+            if (!isValid(g.pieces, squares)) {
+                g.values.set(index, Tablebase.INVALID);
+                return;
+            }
+
+            place(p, g.pieces, squares, side);
+            if (p.inCheck(side ^ 1)) {
+                g.values.set(index, Tablebase.INVALID);
+                return;
+            }
+
+            int n = MoveGenerator.generate(p, moves, 0);
+            if (n == 0) {
+                // Checkmate is lost in 0 plies; stalemate stays drawn
+                if (p.inCheck(side)) g.values.set(index, 1);
+                return;
+            }
+
+            int count = n;
+            int win = 0;
+            int loss = 0;
+            for (int i = 0; i < n; i++) {
+                int move = moves[i];
+                if (p.pieceAt(Move.to(move)) == Position.EMPTY && Move.promotion(move) == 0) continue;
+
+                p.makeMove(move);
+                int score = tablebase.probe(p);
+                p.unmakeMove(move);
+                if (score == Tablebase.NOT_FOUND) {
+                    throw new IllegalStateException("No table for a position after "
+                            + Move.toString(move) + " in " + p.toFen());
+                }
+
+                // Plies to mate after the move, plus the move itself
+                int plies = Search.MATE - Math.abs(score) + 1;
+                if (score < 0) {
+                    win = win == 0 ? plies : Math.min(win, plies);
+                } else if (score > 0) {
+                    count--;
+                    loss = Math.max(loss, plies);
+                }
+            }
+
+            g.work.set(index, count);
+            int pending = win != 0 ? win : loss;
+            if (pending > MAX_LEVEL) throw new IllegalStateException("Mate too long in " + p.toFen());
+            if (pending != 0) {
+                g.work.set(g.size + index, pending);
+                maxPending = Math.max(maxPending, pending);
+            }
+        }
+
+        void solve(long index, int level) {
+            int v = g.values.get(index);
+            if (v == 0) {
+                // Unresolved: win or lose now by a capture or promotion
+                if (g.work.get(g.size + index) == level
+                        && ((level & 1) != 0 || g.work.get(index) == 0)) {
+                    g.values.set(index, level + 1);
+                    changed++;
+                }
+                return;
+            }
+            if (v != level) return;
+
+            // Resolved at the previous level: take back each quiet move of
+            // the side that moved last
+            int side = Tablebase.Table.decode(index, squares);
+            int mover = side ^ 1;
+            long occupied = 0;
+            for (int sq : squares) {
+                occupied |= 1L << sq;
+            }
+
+            for (int j = 0; j < squares.length; j++) {
+                if (Position.colorOf(g.pieces[j]) != mover) continue;
+                int to = squares[j];
+                long from = origins(Position.typeOf(g.pieces[j]), mover, to, occupied);
+
+                for (; from != 0; from &= from - 1) {
+                    squares[j] = Long.numberOfTrailingZeros(from);
+                    predecessor(canonicalIndex(j, mover), level);
+                }
+                squares[j] = to;
+            }
+        }
+
+        /*
+         * Squares a piece now on a square could have come from by a quiet
+         * move.
+         */
+        private long origins(int type, int color, int sq, long occupied) {
+            switch (type) {
+                case Position.PAWN: {
+                    int back = color == Position.WHITE ? -8 : 8;
+                    int from = sq + back;
+                    if (from < 8 || from > 55 || (occupied & (1L << from)) != 0) return 0;
+                    long origins = 1L << from;
+                    int doubleRank = color == Position.WHITE ? 3 : 4;
+                    int doubleFrom = from + back;
+                    if ((sq >>> 3) == doubleRank && (occupied & (1L << doubleFrom)) == 0) {
+                        origins |= 1L << doubleFrom;
+                    }
+                    return origins;
+                }
+                case Position.KNIGHT: return Attacks.knightAttacks(sq) & ~occupied;
+                case Position.BISHOP: return Attacks.bishopAttacks(sq, occupied) & ~occupied;
+                case Position.ROOK: return Attacks.rookAttacks(sq, occupied) & ~occupied;
+                case Position.QUEEN: return Attacks.queenAttacks(sq, occupied) & ~occupied;
+                default: return Attacks.kingAttacks(sq) & ~occupied;
+            }
+        }
+
+        /*
+         * Index of the current squares with the moved piece put back in
+         * order among identical pieces.
+         */
+        private long canonicalIndex(int moved, int side) {
+            System.arraycopy(squares, 0, sorted, 0, squares.length);
+            int i = moved;
+            while (i > 0 && g.pieces[i - 1] == g.pieces[i] && sorted[i - 1] > sorted[i]) {
+                swap(i - 1, i);
+                i--;
+            }
+            while (i + 1 < sorted.length && g.pieces[i + 1] == g.pieces[i] && sorted[i + 1] < sorted[i]) {
+                swap(i, i + 1);
+                i++;
+            }
+            return Tablebase.Table.index(sorted, side);
+        }
+
+        private void swap(int a, int b) {
+            int t = sorted[a];
+            sorted[a] = sorted[b];
+            sorted[b] = t;
+        }
+
+        /*
+         * A predecessor of a position lost at the previous level is won; one
+         * of a position won at the previous level has one move fewer that
+         * could save it, and is lost once none are left.
+         */
+        private void predecessor(long q, int level) {
+            if (g.values.get(q) != 0) return;
+
+            if ((level & 1) != 0) {
+                g.values.set(q, level + 1);
+                changed++;
+            } else if (g.work.decrement(q) == 0 && g.work.get(g.size + q) <= level) {
+                g.values.set(q, level + 1);
+                changed++;
+            }
+        }
+
+        void finish() {
+            if (changed > 0) g.changed.addAndGet(changed);
+            while (true) {
+                int max = g.maxPending.get();
+                if (maxPending <= max || g.maxPending.compareAndSet(max, maxPending)) break;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> signatures = new ArrayList<String>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) threads = Integer.parseInt(arg);
+            else signatures.add(arg);
+        }
+        if (signatures.isEmpty()) {
+            System.err.println("Usage: java TablebaseGenerator signature... [threads]");
+            System.exit(2);
+        }
+
+        Path dir = Paths.get(System.getProperty("chess.tablebases", Tablebase.DEFAULT_DIRECTORY));
+        Files.createDirectories(dir);
+        TablebaseGenerator generator = new TablebaseGenerator(dir, threads);
+
+        try {
+            for (String signature : signatures) {
+                for (String report : generator.generate(signature)) {
+                    System.out.println(report);
+                }
+                System.out.println(Tablebase.canonical(signature) + ": "
+                        + generator.probeLatency(signature, 1000000) + " ns per probe ("
+                        + threads + " threads)");
+            }
+        } finally {
+            generator.shutdown();
+        }
+    }
+}
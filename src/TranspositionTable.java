@@ -0,0 +1,100 @@
+
+/**
+ * Hash table of search results keyed by Zobrist hash, shared without locks
+ * between search threads.
+ *
+ * Each entry is two longs: the packed data and the key XORed with the data.
+ * A reader only accepts an entry whose stored key XORed with its data gives
+ * back the hash it looked up, so an entry torn by two threads writing at
+ * once simply reads as a miss instead of returning another position's
+ * result. Entries are always replaced.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class TranspositionTable {
+    // Kinds of score stored in an entry
+    public static final int EXACT = 1;
+    public static final int LOWER_BOUND = 2;
+    public static final int UPPER_BOUND = 3;
+
+    public static final int DEFAULT_MEGABYTES = 16;
+
+    private static final int ENTRY_BYTES = 16;
+
+    private final long[] keys;
+    private final long[] data;
+    private final int mask;
+
+    /**
+     * Constructs a table using at most the given amount of memory, rounded
+     * down to a power of two number of entries.
+     *
+     * @param megabytes Size of the table, at least 1
+     * @throws IllegalArgumentException if megabytes is less than 1
+     */
+    public TranspositionTable(int megabytes) {
+        if (megabytes < 1) throw new IllegalArgumentException("Table size must be at least 1 MB: " + megabytes);
+        long entries = Long.highestOneBit(((long) megabytes << 20) / ENTRY_BYTES);
+        int size = (int) Math.min(entries, 1 << 30);
+        this.keys = new long[size];
+        this.data = new long[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param key Zobrist hash of the position
+     * @return Packed entry data, or 0 if the position is not in the table.
+     */
+    public long probe(long key) {
+        int i = (int) key & mask;
+        long d = data[i];
+        return (keys[i] ^ d) == key ? d : 0;
+    }
+
+    /**
+     * Stores a search result, replacing whatever was in its slot.
+     *
+     * @param key Zobrist hash of the position
+     * @param move Best move found, or Move.NONE
+     * @param score Score of the position
+     * @param depth Depth the position was searched to
+     * @param bound EXACT, LOWER_BOUND or UPPER_BOUND
+     */
+    public void store(long key, int move, int score, int depth, int bound) {
+        int i = (int) key & mask;
+        long d = (move & 0xFFFFFL)
+                | ((long) (score & 0xFFFF) << 20)
+                | ((long) (depth & 0xFF) << 36)
+                | ((long) bound << 44);
+        data[i] = d;
+        keys[i] = key ^ d;
+    }
+
+    public void clear() {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = 0;
+            data[i] = 0;
+        }
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public static int move(long entry) {
+        return (int) (entry & 0xFFFFF);
+    }
+
+    public static int score(long entry) {
+        return (short) (entry >>> 20);
+    }
+
+    public static int depth(long entry) {
+        return (int) (entry >>> 36) & 0xFF;
+    }
+
+    public static int bound(long entry) {
+        return (int) (entry >>> 44) & 3;
+    }
+}
@@ -0,0 +1,149 @@
+
+/**
+ * Everything the board needs to know about a turn before the player moves:
+ * the legal moves indexed by square, and whether the game has ended. It is
+ * computed from a copy of the position off the event dispatch thread and
+ * does not change afterwards.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public final class TurnState {
+    // Status of the game when the turn begins
+    public static final int PLAYING = 0;
+    public static final int CHECKMATE = 1;
+    public static final int STALEMATE = 2;
+    public static final int FIFTY_MOVES = 3;
+    public static final int REPETITION = 4;
+    // Decided by the endgame tablebases
+    public static final int TABLEBASE = 5;
+    // Endings of games played away from the board, by the server and the
+    // arena, that no turn's rules decide
+    public static final int TIME = 6;
+    public static final int RESIGNED = 7;
+    public static final int ADJUDICATION = 8;
+    public static final int MOVE_LIMIT = 9;
+
+    private final int ply;
+    private final int sideToMove;
+    private final int status;
+    private final int moveCount;
+    private final int tablebaseScore;
+    // Destinations from each square, and the move for each from and to pair
+    // (the queen for promotions)
+    private final long[] targets;
+    private final int[] moveTable;
+
+    private TurnState(int ply, int sideToMove, int status, int moveCount,
+            int tablebaseScore, long[] targets, int[] moveTable) {
+        this.ply = ply;
+        this.sideToMove = sideToMove;
+        this.status = status;
+        this.moveCount = moveCount;
+        this.tablebaseScore = tablebaseScore;
+        this.targets = targets;
+        this.moveTable = moveTable;
+    }
+
+    /**
+     * Generates the legal moves of the side to move and works out the
+     * status of the game.
+     *
+     * @param p Position at the start of the turn. Not changed.
+     * @param ply Number of the turn, used to tell results of old turns apart
+     * @return The state of the turn
+     */
+    public static TurnState compute(Position p, int ply) {
+        int[] moves = new int[MoveGenerator.MAX_MOVES];
+        long[] targets = new long[64];
+        int[] moveTable = new int[64 * 64];
+        int n = MoveGenerator.generate(p, moves, 0);
+
+        // Backwards, so the first of several promotions (the queen) stays
+        for (int i = n - 1; i >= 0; i--) {
+            int from = Move.from(moves[i]);
+            int to = Move.to(moves[i]);
+            targets[from] |= 1L << to;
+            moveTable[(from << 6) | to] = moves[i];
+        }
+
+        int status = status(p, n);
+        int score = Tablebase.NOT_FOUND;
+        if (status == PLAYING) {
+            score = CheckmateDetector.adjudicate(p);
+            if (score != Tablebase.NOT_FOUND) status = TABLEBASE;
+        }
+
+        return new TurnState(ply, p.getSideToMove(), status, n, score, targets, moveTable);
+    }
+
+    /**
+     * Works out whether the game has ended by the rules, without looking in
+     * the tablebases and without allocating.
+     *
+     * @param p Position at the start of the turn
+     * @param moveCount Number of legal moves in the position
+     * @return PLAYING, CHECKMATE, STALEMATE, FIFTY_MOVES or REPETITION
+     */
+    public static int status(Position p, int moveCount) {
+        if (moveCount == 0) return p.inCheck(p.getSideToMove()) ? CHECKMATE : STALEMATE;
+        if (p.getHalfmoveClock() >= 100) return FIFTY_MOVES;
+        if (p.countRepetitions() >= 2) return REPETITION;
+        return PLAYING;
+    }
+
+    public int getPly() {
+        return ply;
+    }
+
+    public int getSideToMove() {
+        return sideToMove;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public int getMoveCount() {
+        return moveCount;
+    }
+
+    /**
+     * @return Tablebase score for the side to move (see Tablebase.probe), or
+     * Tablebase.NOT_FOUND unless the status is TABLEBASE.
+     */
+    public int getTablebaseScore() {
+        return tablebaseScore;
+    }
+
+    /**
+     * @param from Square of a piece of the side to move
+     * @return Bitboard of the squares the piece can legally move to.
+     */
+    public long getTargets(int from) {
+        return targets[from];
+    }
+
+    /**
+     * @param from Square the piece moves from
+     * @param to Square the piece moves to
+     * @return The legal move between the squares, promoting to a queen, or
+     * Move.NONE if there is none.
+     */
+    public int getMove(int from, int to) {
+        return moveTable[(from << 6) | to];
+    }
+
+    /**
+     * @return Why the game is drawn, or null if it is not.
+     */
+    public String getDrawReason() {
+        switch (status) {
+            case STALEMATE: return "stalemate";
+            case FIFTY_MOVES: return "the fifty move rule";
+            case REPETITION: return "threefold repetition";
+            case TABLEBASE: return tablebaseScore == 0 ? "the endgame tablebase" : null;
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Entry point speaking the UCI protocol over standard input and output, so
+ * the engine can be run from chess GUIs and tournament managers.
+ *
+ * The main thread only reads and answers commands. Each search runs on its
+ * own thread and prints bestmove when it finishes, so isready is answered
+ * and stop takes effect while a search is running.
+ *
+ * @author Jussi Lundstedt
+ *
+ */
+public class UciMain {
+    public static final String NAME = "chess-java";
+    public static final String AUTHOR = "Jussi Lundstedt";
+
+    // Milliseconds kept back from every move for the GUI and the pipes
+    private static final long MOVE_OVERHEAD = 30;
+    // Share of the remaining time used when the GUI gives no moves to go
+    private static final int DEFAULT_MOVES_TO_GO = 30;
+    private static final int MAX_THREADS = 64;
+    private static final int MAX_HASH = 4096;
+
+    private final PrintStream out;
+    private final int[] moves = new int[MoveGenerator.MAX_MOVES];
+    private final Random random = new Random();
+
+    private Position position = Position.startPosition();
+    private TranspositionTable table = new TranspositionTable(TranspositionTable.DEFAULT_MEGABYTES);
+    private int threads = 1;
+    private boolean ownBook = true;
+
+    private ParallelSearch search;
+    private Thread searcher;
+    // Set by stop; an infinite search holds its bestmove until then
+    private boolean stopRequested;
+
+    public UciMain(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Answers commands until quit or the end of the input.
+     *
+     * @param in Commands from the GUI
+     * @throws IOException if the input cannot be read
+     */
+    public void run(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (!handle(line.trim())) break;
+        }
+        stop();
+    }
+
+    /*
+     * Handles one command, returning false for quit.
+     */
+    private boolean handle(String line) {
+        String[] words = line.split("\\s+");
+        String command = words[0];
+
+        if (command.equals("uci")) {
+            send("id name " + NAME);
+            send("id author " + AUTHOR);
+            send("option name Hash type spin default " + TranspositionTable.DEFAULT_MEGABYTES
+                    + " min 1 max " + MAX_HASH);
+            send("option name Threads type spin default 1 min 1 max " + MAX_THREADS);
+            send("option name OwnBook type check default true");
+            send("uciok");
+        } else if (command.equals("isready")) {
+            send("readyok");
+        } else if (command.equals("setoption")) {
+            stop();
+            setOption(words);
+        } else if (command.equals("ucinewgame")) {
+            stop();
+            table.clear();
+        } else if (command.equals("position")) {
+            stop();
+            setPosition(words);
+        } else if (command.equals("go")) {
+            stop();
+            go(words);
+        } else if (command.equals("stop")) {
+            stop();
+        } else if (command.equals("quit")) {
+            return false;
+        } else if (!command.isEmpty() && !command.equals("debug") && !command.equals("register")) {
+            send("info string Unknown command: " + line);
+        }
+        return true;
+    }
+
+    private void setOption(String[] words) {
+        String name = "";
+        String value = "";
+        for (int i = 1; i + 1 < words.length; i++) {
+            if (words[i].equals("name")) name = words[i + 1];
+            if (words[i].equals("value")) value = words[i + 1];
+        }
+
+        try {
+            if (name.equalsIgnoreCase("Hash")) {
+                int megabytes = Math.max(1, Math.min(MAX_HASH, Integer.parseInt(value)));
+                table = new TranspositionTable(megabytes);
+            } else if (name.equalsIgnoreCase("Threads")) {
+                threads = Math.max(1, Math.min(MAX_THREADS, Integer.parseInt(value)));
+            } else if (name.equalsIgnoreCase("OwnBook")) {
+                ownBook = Boolean.parseBoolean(value);
+            } else {
+                send("info string Unknown option: " + name);
+            }
+        } catch (NumberFormatException e) {
+            send("info string Invalid value for " + name + ": " + value);
+        }
+    }
+
+    /*
+     * Reads "position startpos|fen <fen> [moves <move>...]". The moves are
+     * made on the position so repetitions of earlier positions are seen.
+     */
+    private void setPosition(String[] words) {
+        int i = 1;
+        Position p;
+        if (i < words.length && words[i].equals("startpos")) {
+            p = Position.startPosition();
+            i++;
+        } else if (i < words.length && words[i].equals("fen")) {
+            StringBuilder fen = new StringBuilder();
+            for (i++; i < words.length && !words[i].equals("moves"); i++) {
+                fen.append(words[i]).append(' ');
+            }
+            try {
+                p = Position.fromFen(fen);
+                p.validate();
+            } catch (IllegalArgumentException e) {
+                send("info string " + e.getMessage());
+                return;
+            }
+        } else {
+            send("info string Expected startpos or fen");
+            return;
+        }
+
+        if (i < words.length && words[i].equals("moves")) {
+            for (i++; i < words.length; i++) {
+                int move = Move.parse(p, words[i], moves);
+                if (move == Move.NONE) {
+                    send("info string Illegal move " + words[i]);
+                    break;
+                }
+                p.makeMove(move);
+            }
+        }
+        position = p;
+    }
+
+    private void go(String[] words) {
+        long time = 0;
+        long increment = 0;
+        long moveTime = 0;
+        int movesToGo = 0;
+        int depth = Search.MAX_PLY;
+        boolean infinite = false;
+        boolean white = position.isWhiteToMove();
+
+        for (int i = 1; i < words.length; i++) {
+            String word = words[i];
+            if (word.equals("infinite")) {
+                infinite = true;
+                continue;
+            }
+            if (i + 1 >= words.length) break;
+
+            try {
+                long value = Long.parseLong(words[i + 1]);
+                if (word.equals(white ? "wtime" : "btime")) time = value;
+                else if (word.equals(white ? "winc" : "binc")) increment = value;
+                else if (word.equals("movestogo")) movesToGo = (int) value;
+                else if (word.equals("movetime")) moveTime = value;
+                else if (word.equals("depth")) depth = (int) Math.max(1, value);
+                else continue;
+                i++;
+            } catch (NumberFormatException e) {
+                // Not a number, so not a value; read it as the next keyword
+            }
+        }
+
+        long millis = infinite ? 0 : moveTime > 0 ? moveTime : allocate(time, increment, movesToGo);
+        // Only a plain timed move is played from the book
+        boolean useBook = ownBook && !infinite && depth == Search.MAX_PLY;
+        start(depth, millis, infinite, useBook);
+    }
+
+    /**
+     * Decides how long to think on a move.
+     *
+     * @param time Milliseconds left on the clock, or 0 if untimed
+     * @param increment Milliseconds added after each move
+     * @param movesToGo Moves until the next time control, or 0 if the rest
+     * of the game must be played in the time left
+     * @return Milliseconds to think, or 0 for no limit
+     */
+    static long allocate(long time, long increment, int movesToGo) {
+        if (time <= 0) return 0;
+
+        int moves = movesToGo > 0 ? Math.min(movesToGo, DEFAULT_MOVES_TO_GO) : DEFAULT_MOVES_TO_GO;
+        long millis = time / moves + increment * 3 / 4;
+        return Math.max(1, Math.min(millis, time - MOVE_OVERHEAD));
+    }
+
+    private void start(final int depth, final long millis, final boolean infinite, final boolean useBook) {
+        final Position root = new Position(position);
+        final ParallelSearch s = new ParallelSearch(root, threads, table);
+        s.setListener(new Search.Listener() {
+            public void iterationFinished(int depth, int score, long nodes, long millis,
+                    int[] pv, int pvLength) {
+                long total = s.getNodes();
+                StringBuilder line = new StringBuilder("info depth ").append(depth).append(" score ");
+                appendScore(line, score);
+                line.append(" nodes ").append(total).append(" time ").append(millis)
+                        .append(" nps ").append(millis == 0 ? 0 : total * 1000 / millis).append(" pv");
+                for (int i = 0; i < pvLength; i++) line.append(' ').append(Move.toString(pv[i]));
+                send(line.toString());
+            }
+        });
+
+        stopRequested = false;
+        search = s;
+        searcher = new Thread(new Runnable() {
+            public void run() {
+                OpeningBook book = useBook ? OpeningBook.getDefault() : null;
+                int move = book == null ? Move.NONE : book.choose(root, random);
+                if (move == Move.NONE) move = s.search(depth, millis);
+                else send("info string book move");
+
+                if (infinite) awaitStop();
+
+                send("bestmove " + (move == Move.NONE ? "0000" : Move.toString(move)));
+            }
+        }, "Search");
+        searcher.start();
+    }
+
+    private synchronized void awaitStop() {
+        while (!stopRequested) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Stops the running search, if any, and waits for its bestmove.
+     */
+    private void stop() {
+        if (searcher == null) return;
+
+        synchronized (this) {
+            stopRequested = true;
+            notifyAll();
+        }
+        search.stop();
+        try {
+            searcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        searcher = null;
+        search = null;
+    }
+
+    /**
+     * Writes a score as UCI expects it, in centipawns or moves to mate.
+     */
+    static void appendScore(StringBuilder sb, int score) {
+        if (score >= Search.MATE - Search.MAX_PLY) {
+            sb.append("mate ").append((Search.MATE - score + 1) / 2);
+        } else if (score <= -Search.MATE + Search.MAX_PLY) {
+            sb.append("mate ").append(-(Search.MATE + score) / 2);
+        } else {
+            sb.append("cp ").append(score);
+        }
+    }
+
+    private void send(String line) {
+        synchronized (out) {
+            out.println(line);
+            out.flush();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        UciMain uci = new UciMain(System.out);
+        uci.run(new BufferedReader(new InputStreamReader(System.in)));
+        System.exit(0);
+    }
+}